@@ -0,0 +1,249 @@
+package academy.hekiyou.pudding;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Launcher settings, read from a properties file and the command line (which wins).
+ *
+ * Besides the keys below, the file and -D arguments may set any of the pudding.* system properties the rest of the
+ * code reads; {@link #apply()} copies them over before anything reads them. Properties already given to the JVM take
+ * precedence over the file.
+ */
+public final class PuddingConfig {
+    
+    public static final String USAGE = String.join("\n",
+            "usage: pudding [options]",
+            "  --config <file>       properties file to read first (default: ./pudding.properties if present)",
+            "  --source <dir>        directory to serve (pudding.source)",
+            "  --mount <dir>         where to mount it (pudding.mount)",
+            "  --mode <mode>         windows or linux; defaults to the OS running (pudding.mode)",
+            "  --cache-bytes <size>  cache budget, i.e 512m or 4g (pudding.cache.bytes)",
+            "  --hot-share <ratio>   share of the budget for the CONSTANTLY tier (pudding.cache.tier.constantly)",
+            "  --single-threaded     serve one FUSE request at a time (pudding.fuse.singleThreaded)",
+            "  -o <options>          extra FUSE mount options, may be repeated (pudding.fuse.options)",
+            "  -D<key>=<value>       set any other pudding.* property");
+    
+    private static final String DEFAULT_FILE = "pudding.properties";
+    
+    private final Properties properties;
+    
+    private PuddingConfig(@NotNull Properties properties){
+        this.properties = properties;
+    }
+    
+    /**
+     * @throws IllegalArgumentException if the arguments don't make sense, with a message fit for the user
+     */
+    @NotNull
+    public static PuddingConfig parse(@NotNull String[] args) throws IOException {
+        Properties cli = new Properties();
+        Path file = null;
+        List<String> fuseOptions = new ArrayList<>();
+        for(int i = 0; i < args.length; i++){
+            String arg = args[i];
+            switch(arg){
+                case "--config":
+                    file = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--source":
+                    cli.setProperty("pudding.source", value(args, ++i, arg));
+                    break;
+                case "--mount":
+                    cli.setProperty("pudding.mount", value(args, ++i, arg));
+                    break;
+                case "--mode":
+                    cli.setProperty("pudding.mode", value(args, ++i, arg));
+                    break;
+                case "--cache-bytes":
+                    cli.setProperty("pudding.cache.bytes", Long.toString(parseSize(value(args, ++i, arg))));
+                    break;
+                case "--hot-share":
+                    cli.setProperty("pudding.cache.tier.constantly", value(args, ++i, arg));
+                    break;
+                case "--single-threaded":
+                    cli.setProperty("pudding.fuse.singleThreaded", "true");
+                    break;
+                case "-o":
+                    fuseOptions.add(value(args, ++i, arg));
+                    break;
+                default:
+                    if(arg.startsWith("-D") && arg.indexOf('=') > 2){
+                        cli.setProperty(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+                        break;
+                    }
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        if(!fuseOptions.isEmpty())
+            cli.setProperty("pudding.fuse.options", String.join(",", fuseOptions));
+        
+        Properties properties = new Properties();
+        if(file == null && Files.isRegularFile(Paths.get(DEFAULT_FILE)))
+            file = Paths.get(DEFAULT_FILE);
+        if(file != null){
+            try(Reader reader = Files.newBufferedReader(file)){
+                properties.load(reader);
+            }
+        }
+        // the JVM's own -D flags beat the file, the command line beats both
+        for(String key : System.getProperties().stringPropertyNames())
+            if(key.startsWith("pudding.")) properties.setProperty(key, System.getProperty(key));
+        properties.putAll(cli);
+        // the file may use suffixes too, but everything else expects a plain byte count
+        String cacheBytes = properties.getProperty("pudding.cache.bytes");
+        if(cacheBytes != null)
+            properties.setProperty("pudding.cache.bytes", Long.toString(parseSize(cacheBytes)));
+        
+        PuddingConfig config = new PuddingConfig(properties);
+        if(config.getSource() == null || config.getMountPoint() == null)
+            throw new IllegalArgumentException("Both a source directory and a mount point are needed");
+        if(!Files.isDirectory(config.getSource()))
+            throw new IllegalArgumentException("Source " + config.getSource() + " is not a directory");
+        String share = properties.getProperty("pudding.cache.tier.constantly");
+        if(share != null && !(Double.parseDouble(share) > 0 && Double.parseDouble(share) < 1))
+            throw new IllegalArgumentException("The hot share has to be between 0 and 1, not " + share);
+        String compressed = properties.getProperty("pudding.cache.compressed");
+        if(compressed != null && !(Double.parseDouble(compressed) >= 0 && Double.parseDouble(compressed) < 1))
+            throw new IllegalArgumentException("The compressed share has to be at least 0 and below 1, not "
+                    + compressed);
+        config.getMode();
+        return config;
+    }
+    
+    /**
+     * Makes every pudding.* setting visible as a system property. Has to happen before the file system classes are
+     * loaded, since they read their settings once.
+     */
+    public void apply(){
+        for(String key : properties.stringPropertyNames())
+            System.setProperty(key, properties.getProperty(key));
+    }
+    
+    @Nullable
+    public Path getSource(){
+        String source = properties.getProperty("pudding.source");
+        return source == null ? null : Paths.get(source);
+    }
+    
+    @Nullable
+    public Path getMountPoint(){
+        String mount = properties.getProperty("pudding.mount");
+        return mount == null ? null : Paths.get(mount);
+    }
+    
+    @NotNull
+    public MountMode getMode(){
+        String mode = properties.getProperty("pudding.mode");
+        if(mode == null)
+            return System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows") ?
+                    MountMode.WINDOWS : MountMode.LINUX;
+        try {
+            return MountMode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch(IllegalArgumentException exc){
+            throw new IllegalArgumentException("Unknown mode " + mode + ", expected windows or linux");
+        }
+    }
+    
+    /**
+     * @return the arguments to mount with: the mode's tuned options followed by any extra ones
+     */
+    @NotNull
+    public String[] getFuseOptions(){
+        List<String> args = new ArrayList<>();
+        if(Boolean.parseBoolean(properties.getProperty("pudding.fuse.singleThreaded")))
+            args.add("-s");
+        
+        List<String> options = getMode().getOptions(this);
+        String extra = properties.getProperty("pudding.fuse.options", "");
+        if(!extra.isEmpty())
+            options.add(extra);
+        if(!options.isEmpty()){
+            args.add("-o");
+            args.add(String.join(",", options));
+        }
+        return args.toArray(new String[0]);
+    }
+    
+    long getLong(@NotNull String key, long def){
+        String value = properties.getProperty(key);
+        return value == null ? def : Long.parseLong(value.trim());
+    }
+    
+    /**
+     * @param size A byte count with an optional k, m or g suffix
+     */
+    static long parseSize(@NotNull String size){
+        String trimmed = size.trim().toLowerCase(Locale.ROOT);
+        int shift = 0;
+        switch(trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1)){
+            case 'k':   shift = 10; break;
+            case 'm':   shift = 20; break;
+            case 'g':   shift = 30; break;
+        }
+        try {
+            return Long.parseLong(shift == 0 ? trimmed : trimmed.substring(0, trimmed.length() - 1)) << shift;
+        } catch(NumberFormatException exc){
+            throw new IllegalArgumentException("Bad size " + size);
+        }
+    }
+    
+    @NotNull
+    private static String value(@NotNull String[] args, int i, @NotNull String arg){
+        if(i >= args.length)
+            throw new IllegalArgumentException(arg + " needs a value");
+        return args[i];
+    }
+    
+    public enum MountMode {
+        
+        /**
+         * WinFsp, as the file system was originally written for.
+         */
+        WINDOWS {
+            @Override
+            List<String> getOptions(@NotNull PuddingConfig config){
+                List<String> options = new ArrayList<>();
+                options.add("FileInfoTimout=0");
+                return options;
+            }
+        },
+        
+        /**
+         * libfuse, tuned for a read-only file system whose files rarely change: requests as large as a cache block,
+         * and attributes and lookups kept by the kernel instead of being asked for again. Pages are kept per file on
+         * open (see pudding.fuse.keepCache) rather than with kernel_cache, which would never let go of stale ones.
+         */
+        LINUX {
+            @Override
+            List<String> getOptions(@NotNull PuddingConfig config){
+                long blockSize = config.getLong("pudding.block.size", 256 * 1024);
+                // in line with how often getattr rechecks the backing files anyway
+                long timeout = config.getLong("pudding.fuse.timeout", config.getLong("pudding.attr.refresh", 5));
+                List<String> options = new ArrayList<>();
+                options.add("ro");
+                options.add("fsname=pudding");
+                options.add("max_read=" + blockSize);
+                options.add("max_readahead=" + blockSize);
+                options.add("attr_timeout=" + timeout);
+                options.add("entry_timeout=" + timeout);
+                options.add("negative_timeout=" + timeout);
+                return options;
+            }
+        };
+        
+        abstract List<String> getOptions(@NotNull PuddingConfig config);
+        
+    }
+    
+}
@@ -1,10 +1,14 @@
 package academy.hekiyou.pudding;
 
 import academy.hekiyou.pudding.fs.PuddingFS;
-import academy.hekiyou.pudding.fs.PuddingFile;
+import academy.hekiyou.pudding.metrics.MetricsSnapshot;
+import academy.hekiyou.pudding.metrics.PuddingMetrics;
 
+import javax.management.JMException;
 import java.io.IOException;
-import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,14 +17,37 @@ public class PuddingMain {
     private static PuddingFS fs;
     
     public static void main(String[] args){
-        Thread thread = new Thread(new ReportTask());
-        thread.setDaemon(true);
-        thread.start();
+        if(Arrays.asList(args).contains("--help")){
+            System.out.println(PuddingConfig.USAGE);
+            return;
+        }
+        
+        PuddingConfig config;
+        try {
+            config = PuddingConfig.parse(args);
+        } catch(IllegalArgumentException | IOException exc){
+            System.out.println(exc.getMessage());
+            System.out.println(PuddingConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        // before anything below loads the classes that read the settings
+        config.apply();
+        
+        PuddingMetrics metrics = PuddingMetrics.get();
+        try {
+            metrics.registerMBeans();
+        } catch(JMException exc){
+            System.out.println("Failed to export metrics over JMX: " + exc);
+        }
+        metrics.schedule(3, TimeUnit.SECONDS, new ReportTask());
         
         fs = null;
         try {
-            fs = new PuddingFS(Paths.get("C:\\Program Files\\ModifiableWindowsApps\\pso2_bin\\data\\win32_real"));
-            fs.mount(Paths.get("C:\\Program Files\\ModifiableWindowsApps\\pso2_bin\\data\\win32"), true, false, new String[]{"-o", "FileInfoTimout=0"});
+            fs = new PuddingFS(config.getSource());
+            System.out.println("Mounting " + config.getSource() + " at " + config.getMountPoint() + " ("
+                    + config.getMode() + ", " + String.join(" ", config.getFuseOptions()) + ")");
+            fs.mount(config.getMountPoint(), true, false, config.getFuseOptions());
         } catch (IOException exc) {
             exc.printStackTrace();
         } finally {
@@ -29,23 +56,37 @@ public class PuddingMain {
         }
     }
     
-    public static class ReportTask implements Runnable {
-    
+    public static class ReportTask implements BiConsumer<MetricsSnapshot, MetricsSnapshot> {
+        
+        // the hit rate counts as steady once this many consecutive reports land within STEADY_POINTS of each other
+        private static final int STEADY_REPORTS = 3;
+        private static final double STEADY_POINTS = 2.0;
+        // print the metrics summary every report, on top of JMX; enable with -Dpudding.debug.stats=true
+        private static final boolean PRINT_STATS = Boolean.getBoolean("pudding.debug.stats");
+        
+        private final long start = System.nanoTime();
+        private double lastRate = Double.NaN;
+        private int steadyReports = 0;
+        private boolean steady = false;
+        
         @Override
-        public void run(){
-            while(true){
-                double percent = (PuddingFile.HIT / ((double)PuddingFile.HIT + PuddingFile.MISS) * 100);
-                System.out.printf("STATS: %d hits, %d misses (%.2f%% hit rate)\n",
-                        PuddingFile.HIT,
-                        PuddingFile.MISS,
-                        Double.isNaN(percent) ? 0D : percent);
-                PuddingFile.printStats();
-                try {
-                    Thread.sleep(3 * 1000);
-                } catch(InterruptedException e){}
+        public void accept(MetricsSnapshot total, MetricsSnapshot interval){
+            if(PRINT_STATS)
+                System.out.println("STATS: " + total);
+            
+            // judge by the rate over the last interval; the cumulative one lags behind by the whole cold start
+            double rate = interval.getHitRatio() * 100;
+            if(!steady && !Double.isNaN(rate)){
+                steadyReports = Math.abs(rate - lastRate) <= STEADY_POINTS ? steadyReports + 1 : 0;
+                lastRate = rate;
+                if(steadyReports >= STEADY_REPORTS){
+                    steady = true;
+                    System.out.printf("STATS: hit rate steady at %.2f%% after %d s\n", rate,
+                            TimeUnit.NANOSECONDS.toSeconds(interval.getTime() - start));
+                }
             }
         }
-    
+        
     }
     
 }
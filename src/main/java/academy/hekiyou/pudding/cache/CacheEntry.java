@@ -3,9 +3,13 @@ package academy.hekiyou.pudding.cache;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Basic cache entry which tracks its own frequency and cache tier
+ *
+ * Readers that use the value outside of the cache's lock {@link #pin()} it first. Evicting an entry only
+ * {@link #retire() retires} it; the value is {@link #clean() cleaned} once the last pin has been released.
  * @param <K> Key type
  * @param <V> Value type
  */
@@ -18,9 +22,16 @@ public abstract class CacheEntry<K, V> implements Comparable<CacheEntry<K, V>> {
     
     private final int keyHash;
     
+    // set once the entry has left the cache; the remaining bits count the readers still using its value
+    private static final int RETIRED = 1 << 31;
+    private static final AtomicIntegerFieldUpdater<CacheEntry> PINS =
+            AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "pins");
+    private volatile int pins;
+    
     @NotNull
     private CacheTier tier;
     private int freq;
+    private long weight;
     
     public CacheEntry(@NotNull K key, @NotNull V value){
         this.key = key;
@@ -53,10 +64,33 @@ public abstract class CacheEntry<K, V> implements Comparable<CacheEntry<K, V>> {
         this.tier = tier;
     }
     
+    public long getWeight(){
+        return weight;
+    }
+    
+    void setWeight(long weight){
+        this.weight = weight;
+    }
+    
+    public int getFreq(){
+        return freq;
+    }
+    
+    void setFreq(int freq){
+        this.freq = freq;
+    }
+    
     public void incrementFreq(){
         freq++;
     }
     
+    /**
+     * Halves the frequency so that past popularity gradually stops counting.
+     */
+    public void decayFreq(){
+        freq >>>= 1;
+    }
+    
     @Override
     public int compareTo(@NotNull CacheEntry<K, V> o){
         return Integer.compare(freq, o.freq);
@@ -86,7 +120,49 @@ public abstract class CacheEntry<K, V> implements Comparable<CacheEntry<K, V>> {
         return keyHash;
     }
     
-    public abstract void clean();
+    /**
+     * Keeps the value from being cleaned until {@link #unpin()}.
+     *
+     * @return false if the entry has already been retired, in which case it must not be used (or unpinned)
+     */
+    public boolean pin(){
+        int state;
+        do {
+            state = pins;
+            if((state & RETIRED) != 0)
+                return false;
+        } while(!PINS.compareAndSet(this, state, state + 1));
+        return true;
+    }
+    
+    public void unpin(){
+        // pins can't be taken once retired, so only the last reader out sees exactly RETIRED
+        if(PINS.decrementAndGet(this) == RETIRED)
+            clean();
+    }
+    
+    /**
+     * Marks the entry as no longer cached, cleaning it right away unless it's still pinned. Later calls do nothing.
+     */
+    public void retire(){
+        int state;
+        do {
+            state = pins;
+            if((state & RETIRED) != 0)
+                return;
+        } while(!PINS.compareAndSet(this, state, state | RETIRED));
+        if(state == 0)
+            clean();
+    }
+    
+    public boolean isRetired(){
+        return (pins & RETIRED) != 0;
+    }
+    
+    /**
+     * Releases whatever backs the value. Called exactly once, after the entry has been retired and unpinned.
+     */
+    protected abstract void clean();
     
     
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Produces the value for a key that isn't cached yet.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+@FunctionalInterface
+public interface CacheLoader<K, V> {
+    
+    /**
+     * @return the value to cache, or null if it shouldn't be cached (i.e there's no room for it)
+     */
+    @Nullable
+    V load(@NotNull K key) throws IOException;
+    
+}
@@ -0,0 +1,94 @@
+package academy.hekiyou.pudding.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of what a {@link TieredCache} and its {@link EvictionPolicy} have been doing. Counters are
+ * {@link LongAdder}s so that recording from many reader threads at once doesn't contend.
+ */
+public class CacheStats {
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedWeight = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+    
+    public void recordHit(){
+        hits.increment();
+    }
+    
+    public void recordMiss(){
+        misses.increment();
+    }
+    
+    public void recordLoad(long nanos){
+        loads.increment();
+        loadNanos.add(nanos);
+    }
+    
+    public void recordLoadFailure(long nanos){
+        loadFailures.increment();
+        loadNanos.add(nanos);
+    }
+    
+    public void recordEviction(long weight){
+        evictions.increment();
+        evictedWeight.add(weight);
+    }
+    
+    public void recordPromotion(){
+        promotions.increment();
+    }
+    
+    public void recordDemotion(){
+        demotions.increment();
+    }
+    
+    public long getHits(){
+        return hits.sum();
+    }
+    
+    public long getMisses(){
+        return misses.sum();
+    }
+    
+    /**
+     * @return number of values successfully loaded through {@link TieredCache#computeIfAbsent(Object, CacheLoader)}
+     */
+    public long getLoads(){
+        return loads.sum();
+    }
+    
+    public long getLoadFailures(){
+        return loadFailures.sum();
+    }
+    
+    /**
+     * @return total time spent in loaders, successful or not
+     */
+    public long getLoadNanos(){
+        return loadNanos.sum();
+    }
+    
+    public long getEvictions(){
+        return evictions.sum();
+    }
+    
+    public long getEvictedWeight(){
+        return evictedWeight.sum();
+    }
+    
+    public long getPromotions(){
+        return promotions.sum();
+    }
+    
+    public long getDemotions(){
+        return demotions.sum();
+    }
+    
+}
@@ -5,9 +5,9 @@ import org.jetbrains.annotations.Nullable;
 
 public enum CacheTier {
     
-    CONSTANTLY(0.2),
+    CONSTANTLY(constantlyShare()),
 //    OCCASIONALLY(0.3),
-    RARELY(0.8);
+    RARELY(1 - constantlyShare());
     
     private final double scale;
     
@@ -19,6 +19,15 @@ public enum CacheTier {
         return scale;
     }
     
+    // share of the capacity for the hottest tier, the rest goes to RARELY; override with
+    // -Dpudding.cache.tier.constantly=<fraction>
+    private static double constantlyShare(){
+        double share = Double.parseDouble(System.getProperty("pudding.cache.tier.constantly", "0.2"));
+        if(share <= 0 || share >= 1)
+            throw new IllegalArgumentException("pudding.cache.tier.constantly must be between 0 and 1: " + share);
+        return share;
+    }
+    
     @Nullable
     public CacheTier next(){
         switch(this){
@@ -0,0 +1,193 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * A {@link TieredCache} that is safe to use from many threads at once.
+ *
+ * Lookups go straight to a {@link ConcurrentHashMap} without locking. Rather than re-sorting the tier lists on every
+ * hit, reads are recorded into a {@link ReadBuffer} and replayed in batches by whichever thread holds the
+ * maintenance lock - either when a stripe fills up, or on the next write. Writes are serialized by the same lock.
+ *
+ * {@link #computeIfAbsent(Object, int, CacheLoader)} runs at most one loader per key at a time; concurrent callers for
+ * the same key wait for that load instead of starting their own.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public abstract class ConcurrentTieredCache<K, V> extends TieredCache<K, V> {
+    
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+    private final ReadBuffer<CacheEntry<K, V>> readBuffer = new ReadBuffer<>();
+    private final ConcurrentMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    
+    public ConcurrentTieredCache(long capacity){
+        this(capacity, TieredPolicy::new);
+    }
+    
+    public ConcurrentTieredCache(long capacity, @NotNull LongFunction<EvictionPolicy<K, V>> policyFactory){
+        super(capacity, policyFactory, new ConcurrentHashMap<>());
+    }
+    
+    @Override
+    public V put(@NotNull K key, @NotNull V value, int freq){
+        maintenanceLock.lock();
+        try {
+            drainReadBuffer();
+            return super.put(key, value, freq);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    @Override
+    protected void hit(@NotNull CacheEntry<K, V> entry, boolean count){
+        if(count)
+            getStats().recordHit();
+        if(readBuffer.offer(entry) == ReadBuffer.FULL)
+            tryDrainReadBuffer();
+    }
+    
+    /**
+     * {@inheritDoc}
+     *
+     * If another thread is already loading key, this waits for it and returns its result instead. Should that load
+     * fail, its exception is rethrown here wrapped in an IOException.
+     */
+    @Override
+    @Nullable
+    public V computeIfAbsent(@NotNull K key, int freq, @NotNull CacheLoader<K, V> loader) throws IOException {
+        V cached = get(key, false);
+        if(cached != null)
+            return cached;
+        
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> existing = loading.putIfAbsent(key, load);
+        if(existing != null)
+            return await(key, existing);
+        
+        try {
+            // a load may have finished between the lookup and claiming the key
+            CacheEntry<K, V> entry = getEntry(key);
+            V value = entry != null ? entry.getValue() : load(key, loader);
+            if(entry == null && value != null)
+                putLoaded(key, value, freq);
+            load.complete(value);
+            return value;
+        } catch(IOException | RuntimeException | Error exc){
+            load.completeExceptionally(exc);
+            throw exc;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+    
+    @Override
+    protected boolean evictNext(){
+        maintenanceLock.lock();
+        try {
+            return super.evictNext();
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    @Override
+    public void forEachEntry(@NotNull Consumer<CacheEntry<K, V>> action){
+        maintenanceLock.lock();
+        try {
+            drainReadBuffer();
+            super.forEachEntry(action);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean invalidate(@NotNull K key){
+        maintenanceLock.lock();
+        try {
+            drainReadBuffer();
+            return super.invalidate(key);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    @Override
+    public void setCapacity(long capacity){
+        maintenanceLock.lock();
+        try {
+            drainReadBuffer();
+            super.setCapacity(capacity);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    @Override
+    public void clear(){
+        maintenanceLock.lock();
+        try {
+            super.clear();
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    @Override
+    public void printStats(){
+        maintenanceLock.lock();
+        try {
+            drainReadBuffer();
+            super.printStats();
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    /**
+     * Applies all buffered reads if nobody else is already doing so.
+     */
+    public void tryDrainReadBuffer(){
+        if(maintenanceLock.tryLock()){
+            try {
+                drainReadBuffer();
+            } finally {
+                maintenanceLock.unlock();
+            }
+        }
+    }
+    
+    @Nullable
+    private V await(@NotNull K key, @NotNull CompletableFuture<V> load) throws IOException {
+        try {
+            return load.get();
+        } catch(InterruptedException exc){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key + " to load");
+        } catch(ExecutionException exc){
+            throw new IOException("Failed to load " + key, exc.getCause());
+        }
+    }
+    
+    private void drainReadBuffer(){
+        readBuffer.drainTo(entry -> {
+            // the entry may have been evicted (or replaced) since the read was recorded
+            if(getEntry(entry.getKey()) == entry)
+                recordAccess(entry);
+        });
+    }
+    
+}
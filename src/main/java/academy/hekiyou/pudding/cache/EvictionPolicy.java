@@ -0,0 +1,62 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides which entries a {@link TieredCache} keeps and which it throws away. The cache owns the key lookup and the
+ * weight accounting; the policy only orders entries and assigns their {@link CacheTier}.
+ *
+ * Policies are not thread-safe; the owning cache serializes all calls.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public interface EvictionPolicy<K, V> {
+    
+    /**
+     * Starts tracking a freshly inserted entry. The cache has already made room for it.
+     */
+    void add(@NotNull CacheEntry<K, V> entry);
+    
+    /**
+     * Records a hit on an entry that is being tracked.
+     */
+    void access(@NotNull CacheEntry<K, V> entry);
+    
+    /**
+     * Picks the next entry to evict and stops tracking it.
+     *
+     * @return the victim, or null if nothing is being tracked
+     */
+    @Nullable
+    CacheEntry<K, V> evict();
+    
+    /**
+     * Stops tracking an entry that the cache is dropping on its own, i.e because it's gone stale.
+     */
+    void remove(@NotNull CacheEntry<K, V> entry);
+    
+    /**
+     * @return the total weight of tracked entries currently in the given tier
+     */
+    long getWeight(@NotNull CacheTier tier);
+    
+    /**
+     * Adjusts the policy to a new capacity of the owning cache, which evicts whatever no longer fits itself.
+     */
+    void setCapacity(long capacity);
+    
+    /**
+     * Stops tracking every entry.
+     */
+    void clear();
+    
+    void printStats();
+    
+    /**
+     * Hands the policy the stats of its owning cache, to record promotions and demotions into.
+     */
+    default void setStats(@NotNull CacheStats stats){}
+    
+}
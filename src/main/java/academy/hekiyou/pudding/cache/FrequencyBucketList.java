@@ -0,0 +1,307 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An O(1) LFU list: a doubly-linked list of frequency buckets, lowest first, where each bucket holds its own
+ * doubly-linked list of equal elements (oldest first).
+ *
+ * Since an element's frequency only ever changes by one on access, restructuring just moves its node into the
+ * neighbouring bucket (creating it if needed) instead of walking past every element that ties with it the way
+ * {@link SimpleStructuredList} does. Larger jumps (i.e. elements inserted with an existing frequency) walk buckets
+ * rather than elements, so they stay cheap as long as there are few distinct frequencies.
+ *
+ * Ties are broken by age: the lowest element is the oldest one in the lowest bucket, the highest element is the
+ * newest one in the highest bucket.
+ *
+ * @param <E> Type of elements to be stored
+ */
+public class FrequencyBucketList<E extends Comparable<E>> implements StructuredList<E> {
+    
+    private final Map<E, Node> nodeMap;
+    private Bucket head, tail;
+    
+    public FrequencyBucketList(int capacity){
+        this.nodeMap = new HashMap<>(capacity + 1);
+    }
+    
+    @Override
+    public void add(@NotNull E entry){
+        Node node = new Node(entry);
+        if(head == null){
+            Bucket bucket = new Bucket();
+            linkBucket(bucket, null, null);
+            bucket.append(node);
+        } else if(entry.compareTo(tail.representative()) >= 0){
+            // common when swapping a promoted entry in; walk from the top
+            place(node, tail, null);
+        } else {
+            place(node, null, head);
+        }
+        nodeMap.put(entry, node);
+    }
+    
+    @Override
+    public void remove(@NotNull E entry){
+        Node node = nodeMap.remove(entry);
+        if(node == null)
+            throw new NoSuchElementException();
+        
+        Bucket bucket = node.bucket;
+        bucket.unlink(node);
+        if(bucket.isEmpty())
+            unlinkBucket(bucket);
+    }
+    
+    @Override
+    public void restructure(@NotNull E changed){
+        Node node = nodeMap.get(changed);
+        if(node == null)
+            throw new NoSuchElementException("attempted to restructure " + changed);
+        
+        Bucket bucket = node.bucket;
+        bucket.unlink(node);
+        
+        Bucket prev, next;
+        if(bucket.isEmpty()){
+            // only member; its position is where the bucket used to be
+            prev = bucket.prev;
+            next = bucket.next;
+            unlinkBucket(bucket);
+        } else {
+            int cmp = changed.compareTo(bucket.representative());
+            if(cmp == 0){
+                // still ties with its old bucket, it's just the newest member now
+                bucket.append(node);
+                return;
+            } else if(cmp > 0){
+                prev = bucket;
+                next = bucket.next;
+            } else {
+                prev = bucket.prev;
+                next = bucket;
+            }
+        }
+        
+        place(node, prev, next);
+    }
+    
+    @Override
+    @NotNull
+    public E getHighest(){
+        if(isEmpty())
+            throw new NoSuchElementException();
+        return tail.last.value;
+    }
+    
+    @Override
+    public boolean hasHighest(){
+        return tail != null;
+    }
+    
+    @Override
+    public @NotNull E popHighest(){
+        E entry = getHighest();
+        remove(entry);
+        return entry;
+    }
+    
+    @Override
+    @NotNull
+    public E getLowest(){
+        if(isEmpty())
+            throw new NoSuchElementException();
+        return head.first.value;
+    }
+    
+    @Override
+    public boolean hasLowest(){
+        return head != null;
+    }
+    
+    @Override
+    public @NotNull E popLowest(){
+        E entry = getLowest();
+        remove(entry);
+        return entry;
+    }
+    
+    @Override
+    @NotNull
+    public Iterator<E> iterator(){
+        return new Iter();
+    }
+    
+    @Override
+    public int size(){
+        return nodeMap.size();
+    }
+    
+    @Override
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+    
+    @Override
+    public String toString(){
+        return "FrequencyBucketList{size=" + size() +
+               ", min=" + (head == null ? null : head.first) +
+               ", max=" + (tail == null ? null : tail.last) + "}";
+    }
+    
+    /**
+     * Places node into the bucket it belongs in, given that it sorts somewhere between prev and next (either may be
+     * null to denote the ends of the list). Walks outwards if that assumption turns out to be wrong.
+     */
+    private void place(@NotNull Node node, @Nullable Bucket prev, @Nullable Bucket next){
+        E value = node.value;
+        
+        while(next != null && value.compareTo(next.representative()) > 0){
+            prev = next;
+            next = next.next;
+        }
+        while(prev != null && value.compareTo(prev.representative()) < 0){
+            next = prev;
+            prev = prev.prev;
+        }
+        
+        if(next != null && value.compareTo(next.representative()) == 0){
+            next.append(node);
+        } else if(prev != null && value.compareTo(prev.representative()) == 0){
+            prev.append(node);
+        } else {
+            Bucket bucket = new Bucket();
+            linkBucket(bucket, prev, next);
+            bucket.append(node);
+        }
+    }
+    
+    private void linkBucket(@NotNull Bucket bucket, @Nullable Bucket prev, @Nullable Bucket next){
+        bucket.prev = prev;
+        bucket.next = next;
+        
+        if(prev == null)
+            head = bucket;
+        else
+            prev.next = bucket;
+        
+        if(next == null)
+            tail = bucket;
+        else
+            next.prev = bucket;
+    }
+    
+    private void unlinkBucket(@NotNull Bucket bucket){
+        if(bucket.prev != null)
+            bucket.prev.next = bucket.next;
+        
+        if(bucket.next != null)
+            bucket.next.prev = bucket.prev;
+        
+        if(bucket == tail)
+            tail = bucket.prev;
+        
+        if(bucket == head)
+            head = bucket.next;
+    }
+    
+    private class Bucket {
+        
+        @Nullable
+        Bucket next, prev;
+        
+        @Nullable
+        Node first, last;
+        
+        E representative(){
+            // buckets are never left empty while linked
+            return first.value;
+        }
+        
+        boolean isEmpty(){
+            return first == null;
+        }
+        
+        void append(@NotNull Node node){
+            node.bucket = this;
+            node.prev = last;
+            node.next = null;
+            if(last == null)
+                first = node;
+            else
+                last.next = node;
+            last = node;
+        }
+        
+        void unlink(@NotNull Node node){
+            if(node.prev != null)
+                node.prev.next = node.next;
+            
+            if(node.next != null)
+                node.next.prev = node.prev;
+            
+            if(node == last)
+                last = node.prev;
+            
+            if(node == first)
+                first = node.next;
+            
+            node.prev = node.next = null;
+        }
+        
+    }
+    
+    private class Node {
+        
+        @Nullable
+        Node next, prev;
+        
+        Bucket bucket;
+        
+        final E value;
+        
+        Node(E val){
+            this.value = val;
+        }
+        
+        @Override
+        public String toString(){
+            return "Node{value=" + value + '}';
+        }
+        
+    }
+    
+    private class Iter implements Iterator<E> {
+        
+        private Bucket bucket = head;
+        private Node current = head == null ? null : head.first;
+        
+        @Override
+        public boolean hasNext(){
+            return current != null;
+        }
+        
+        @Override
+        public E next(){
+            if(current == null)
+                throw new NoSuchElementException();
+            
+            E value = current.value;
+            current = current.next;
+            // advance onto the next bucket once this one is exhausted
+            if(current == null && bucket.next != null){
+                bucket = bucket.next;
+                current = bucket.first;
+            }
+            return value;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,113 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A count-min sketch of 4-bit counters that estimates how often a key has been seen recently.
+ *
+ * Each key maps onto four counters (one per hash function) within a single 64-bit word group; its estimate is the
+ * smallest of the four. Once the number of recorded additions reaches ten times the table width, every counter is
+ * halved so that past popularity fades and newly hot keys can overtake it.
+ */
+final class FrequencySketch {
+    
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    static final int MAX_COUNT = 15;
+    
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+    
+    FrequencySketch(){
+        ensureCapacity(16);
+    }
+    
+    /**
+     * Grows the sketch so it can track roughly the given number of distinct keys.
+     */
+    void ensureCapacity(long expectedKeys){
+        int maximum = (int)Math.min(Math.max(expectedKeys, 16), 1 << 30);
+        if(table != null && table.length >= maximum)
+            return;
+        
+        long[] grown = new long[Integer.highestOneBit(maximum - 1) << 1];
+        if(table != null){
+            // a key's index in the wider table only gains high bits, so tiling the old table over the new one keeps
+            // every estimate intact instead of forgetting everything whenever the cache grows
+            for(int i = 0; i < grown.length; i++)
+                grown[i] = table[i & tableMask];
+        }
+        
+        table = grown;
+        tableMask = table.length - 1;
+        sampleSize = 10 * table.length;
+    }
+    
+    /**
+     * @return the estimated number of times key has been seen, capped at 15
+     */
+    int frequency(@NotNull Object key){
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for(int i = 0; i < 4; i++){
+            int index = indexOf(hash, i);
+            int count = (int)((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+    
+    /**
+     * Records one occurrence of key, halving all counters once the sample period is over.
+     */
+    void increment(@NotNull Object key){
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        
+        boolean added = false;
+        for(int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+        
+        if(added && ++additions >= sampleSize)
+            reset();
+    }
+    
+    private boolean incrementAt(int index, int counter){
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if((table[index] & mask) != mask){
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+    
+    private void reset(){
+        int odd = 0;
+        for(int i = 0; i < table.length; i++){
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        // halving rounds odd counters down; account for the lost quarter-counts
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+    
+    private int indexOf(int hash, int i){
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int)h) & tableMask;
+    }
+    
+    private static int spread(int x){
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+    
+}
@@ -0,0 +1,184 @@
+package academy.hekiyou.pudding.cache;
+
+import com.sun.management.OperatingSystemMXBean;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Resizes a cache with the memory left on the machine, so that the cache is never what pushes the host into swapping.
+ *
+ * Every interval it samples the memory available system-wide. When that drops below the low watermark, the cache
+ * gives up the shortfall right away, at least a step and no more than {@link #MAX_SHRINK_STEPS} steps at a time, where
+ * a step is {@link #STEP_SHARE} of its current capacity. Until the cache has {@link TieredCache#releaseMemory()
+ * released} what it gave up, and for the shrink delay after, the memory available can't be expected to reflect the
+ * shrink, so it doesn't shrink again meanwhile. Once memory is back above the high watermark and nothing has been
+ * given up for the grow delay, it grows back a step at a time, up to the capacity it started out with. A grow step is
+ * never larger than the gap between the watermarks, so growing by one can't by itself drop memory below the low one.
+ */
+public class MemoryPressureController implements Closeable {
+    
+    // most a single sample may shrink the cache by, so one bad reading can't empty it
+    public static final int MAX_SHRINK_STEPS = 4;
+    // share of the current capacity making up a step
+    public static final double STEP_SHARE = 0.125;
+    
+    private static final Path MEMINFO = Paths.get("/proc/meminfo");
+    
+    private final TieredCache<?, ?> cache;
+    private final long maxCapacity;
+    private final long minCapacity;
+    private final long low;
+    private final long high;
+    private final long shrinkDelay;
+    private final long growDelay;
+    private final LongSupplier available;
+    
+    private boolean shrunk = false;
+    private long lastShrink;
+    private ScheduledExecutorService scheduler;
+    
+    /**
+     * Watches the memory of this machine.
+     *
+     * @param minCapacity Smallest the cache may shrink to
+     * @param low         Bytes of system memory below which the cache shrinks
+     * @param high        Bytes of system memory above which the cache may grow back
+     * @param shrinkDelay How long after shrinking to hold off shrinking again, in nanoseconds
+     * @param growDelay   How long after shrinking to hold off growing again, in nanoseconds
+     */
+    public MemoryPressureController(@NotNull TieredCache<?, ?> cache, long minCapacity, long low, long high,
+                                    long shrinkDelay, long growDelay){
+        this(cache, minCapacity, low, high, shrinkDelay, growDelay, MemoryPressureController::systemAvailable);
+    }
+    
+    /**
+     * Watches whatever the supplier reports, i.e for tests.
+     *
+     * @param available Supplies the bytes available system-wide, or a negative number if unknown
+     */
+    public MemoryPressureController(@NotNull TieredCache<?, ?> cache, long minCapacity, long low, long high,
+                                    long shrinkDelay, long growDelay, @NotNull LongSupplier available){
+        if(high <= low)
+            throw new IllegalArgumentException("The high watermark must be above the low one");
+        this.cache = cache;
+        this.maxCapacity = cache.getCapacity();
+        this.minCapacity = Math.min(minCapacity, maxCapacity);
+        this.low = low;
+        this.high = high;
+        this.shrinkDelay = shrinkDelay;
+        this.growDelay = growDelay;
+        this.available = available;
+    }
+    
+    /**
+     * Starts sampling in the background.
+     *
+     * @param interval Time between samples, in milliseconds
+     */
+    public synchronized void start(long interval){
+        if(scheduler != null)
+            return;
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pudding-memory");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sample(System.nanoTime());
+            } catch(RuntimeException exc){
+                System.out.println("Failed to adjust the cache to memory pressure: " + exc);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public synchronized void close(){
+        if(scheduler != null)
+            scheduler.shutdownNow();
+        scheduler = null;
+    }
+    
+    /**
+     * Takes one sample and resizes the cache if called for.
+     *
+     * @param now {@link System#nanoTime()}
+     * @return the cache's capacity afterwards
+     */
+    public synchronized long sample(long now){
+        long capacity = cache.getCapacity();
+        // memory given up by the last shrink that's yet to be released, if any, doesn't show up as available
+        boolean releasing = shrunk && cache.releaseMemory();
+        long target = decide(capacity, available.getAsLong(), releasing, now);
+        if(target != capacity){
+            System.out.println("Memory " + (target < capacity ? "pressure" : "freed up") + ", resizing cache from "
+                    + capacity + " to " + target + " bytes");
+            cache.setCapacity(target);
+        }
+        return target;
+    }
+    
+    private long decide(long capacity, long available, boolean releasing, long now){
+        long step = Math.max(1, (long) (capacity * STEP_SHARE));
+        long shortfall = available < 0 ? 0 : low - available;
+        if(shortfall > 0){
+            if(releasing || shrunk && now - lastShrink < shrinkDelay)
+                return capacity;
+            long cut = Math.min(Math.max(shortfall, step), step * MAX_SHRINK_STEPS);
+            long target = Math.max(minCapacity, capacity - cut);
+            if(target < capacity){
+                shrunk = true;
+                lastShrink = now;
+            }
+            return target;
+        }
+        
+        boolean plenty = available < 0 || available >= high;
+        if(plenty && capacity < maxCapacity && (!shrunk || now - lastShrink >= growDelay))
+            return Math.min(maxCapacity, capacity + Math.min(step, high - low));
+        return capacity;
+    }
+    
+    /**
+     * @return bytes of memory available to new allocations without swapping, going by MemAvailable on Linux and free
+     *         physical memory elsewhere; or -1 if unknown
+     */
+    public static long systemAvailable(){
+        if(Files.isReadable(MEMINFO)){
+            try(BufferedReader reader = Files.newBufferedReader(MEMINFO)){
+                String line;
+                while((line = reader.readLine()) != null){
+                    // i.e "MemAvailable:   12345678 kB"
+                    if(line.startsWith("MemAvailable:"))
+                        return Long.parseLong(line.substring(13).replace("kB", "").trim()) * 1024;
+                }
+            } catch(IOException | NumberFormatException exc){
+                // fall back below
+            }
+        }
+        
+        OperatingSystemMXBean os = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class);
+        return os == null ? -1 : os.getFreePhysicalMemorySize();
+    }
+    
+    /**
+     * @return bytes of physical memory in the machine, or -1 if unknown
+     */
+    public static long totalMemory(){
+        OperatingSystemMXBean os = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class);
+        return os == null ? -1 : os.getTotalPhysicalMemorySize();
+    }
+    
+}
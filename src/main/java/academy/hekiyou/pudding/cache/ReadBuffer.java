@@ -0,0 +1,101 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A lossy, striped buffer of recorded reads. Reader threads each hash onto a stripe and publish into it with a single
+ * CAS; the buffer is only ever drained by whoever holds the owning cache's maintenance lock.
+ *
+ * Recording a read may fail (contention on a stripe, or the stripe being full) - losing a few frequency bumps is
+ * preferable to having readers wait on each other.
+ *
+ * @param <E> Type of elements to be buffered
+ */
+final class ReadBuffer<E> {
+    
+    static final int SUCCESS = 0;
+    static final int FAILED = 1;
+    static final int FULL = 2;
+    
+    private static final int STRIPE_SIZE = 16;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+    
+    private final Stripe<E>[] stripes;
+    private final int mask;
+    
+    @SuppressWarnings("unchecked")
+    ReadBuffer(){
+        // round up to the next power of two so stripe selection is a mask
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+        this.stripes = new Stripe[count];
+        for(int i = 0; i < count; i++)
+            stripes[i] = new Stripe<>();
+        this.mask = count - 1;
+    }
+    
+    /**
+     * @return one of {@link #SUCCESS}, {@link #FAILED} or {@link #FULL}
+     */
+    int offer(@NotNull E element){
+        return stripes[probe() & mask].offer(element);
+    }
+    
+    /**
+     * Drains every stripe into consumer. Must only be called by the holder of the maintenance lock.
+     */
+    void drainTo(@NotNull Consumer<E> consumer){
+        for(Stripe<E> stripe : stripes)
+            stripe.drainTo(consumer);
+    }
+    
+    private static int probe(){
+        // FUSE callbacks come from a fixed pool of native threads, so the thread id is a stable spreader
+        long id = Thread.currentThread().getId();
+        int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+    
+    private static final class Stripe<E> {
+        
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(STRIPE_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        // only advanced by the drainer; volatile so writers see freed slots
+        private volatile long reads;
+        
+        int offer(E element){
+            long head = reads;
+            long tail = writes.get();
+            if(tail - head >= STRIPE_SIZE)
+                return FULL;
+            
+            if(writes.compareAndSet(tail, tail + 1)){
+                buffer.lazySet((int)(tail & STRIPE_MASK), element);
+                return SUCCESS;
+            }
+            return FAILED;
+        }
+        
+        void drainTo(Consumer<E> consumer){
+            long head = reads;
+            long tail = writes.get();
+            while(head < tail){
+                int index = (int)(head & STRIPE_MASK);
+                E element = buffer.get(index);
+                // writer claimed the slot but hasn't published yet; pick it up next drain
+                if(element == null)
+                    break;
+                
+                buffer.lazySet(index, null);
+                consumer.accept(element);
+                head++;
+            }
+            reads = head;
+        }
+        
+    }
+    
+}
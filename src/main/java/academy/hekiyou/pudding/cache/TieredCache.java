@@ -3,62 +3,172 @@ package academy.hekiyou.pudding.cache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
 
+/**
+ * Cache bounded by the total weight of its entries, with the choice of what to keep delegated to an
+ * {@link EvictionPolicy} (by default the frequency-tiered {@link TieredPolicy}).
+ *
+ * By default every entry weighs 1, so the capacity is a plain entry count. Subclasses that hold values of varying
+ * size (i.e buffers) override {@link #weigh(Object, Object)} so the capacity becomes a byte budget instead.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
 public abstract class TieredCache<K, V> {
     
     private final Map<K, CacheEntry<K, V>> entries;
-    private final Map<CacheTier, StructuredList<CacheEntry<K, V>>> frequency;
+    private final EvictionPolicy<K, V> policy;
+    private final CacheStats stats = new CacheStats();
     
-    private final int capacity;
-    private int size = 0;
+    private volatile long capacity;
+    private long weight = 0;
     
-    public TieredCache(int capacity){
+    @Nullable
+    private Consumer<K> evictionListener;
+    
+    public TieredCache(long capacity){
+        this(capacity, TieredPolicy::new);
+    }
+    
+    /**
+     * @param capacity      Maximum total weight of all entries
+     * @param policyFactory Creates the eviction policy, given the capacity (i.e WindowTinyLfuPolicy::new)
+     */
+    public TieredCache(long capacity, @NotNull LongFunction<EvictionPolicy<K, V>> policyFactory){
+        this(capacity, policyFactory, new HashMap<>());
+    }
+    
+    /**
+     * @param capacity      Maximum total weight of all entries
+     * @param policyFactory Creates the eviction policy, given the capacity
+     * @param entries       Empty map used to look up entries by key; must be thread-safe if lookups happen concurrently
+     */
+    protected TieredCache(long capacity,
+                          @NotNull LongFunction<EvictionPolicy<K, V>> policyFactory,
+                          @NotNull Map<K, CacheEntry<K, V>> entries){
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
         this.capacity = capacity;
         
-        this.entries = new HashMap<>();
-        this.frequency = new EnumMap<>(CacheTier.class);
-        
-        initialize();
+        this.entries = entries;
+        this.policy = policyFactory.apply(capacity);
+        this.policy.setStats(stats);
     }
     
     @NotNull
     public abstract CacheEntry<K, V> makeEntry(K key, V value);
     
+    /**
+     * Computes how much of the cache's capacity the given value occupies. The weight of an entry is computed once
+     * on insertion and must not change while it is cached.
+     */
+    protected long weigh(@NotNull K key, @NotNull V value){
+        return 1;
+    }
+    
     public V put(@NotNull K key, @NotNull V value){
+        return put(key, value, 1);
+    }
+    
+    /**
+     * Inserts an entry as though it had already been hit freq times, i.e when restoring a snapshot.
+     */
+    public V put(@NotNull K key, @NotNull V value, int freq){
         if(contains(key))
             throw new IllegalStateException("Duplicate entry insertion");
         
-        StructuredList<CacheEntry<K, V>> rarely = frequency.get(CacheTier.RARELY);
+        long entryWeight = weigh(key, value);
+        if(entryWeight < 0)
+            throw new IllegalArgumentException("Negative weight " + entryWeight + " for " + key);
+        if(entryWeight > capacity)
+            throw new IllegalArgumentException("Entry " + key + " (" + entryWeight + ") exceeds capacity " + capacity);
         
-        if(size >= capacity){
-            // find lowest entry and clean+remove it to make room for newest entry
-            CacheEntry<K, V> lowest = rarely.popLowest();
-            entries.remove(lowest.getKey());
-            lowest.clean();
-        }
+        // let the policy evict as many entries as needed to make room for the newest entry
+        while(weight + entryWeight > capacity)
+            evict();
         
         CacheEntry<K, V> newEntry = makeEntry(key, value);
+        newEntry.setWeight(entryWeight);
+        newEntry.setFreq(Math.max(1, freq));
         entries.put(key, newEntry);
-        rarely.add(newEntry);
-        size++;
+        policy.add(newEntry);
+        weight += entryWeight;
         return null;
     }
     
     @Nullable
     public V get(@NotNull K key){
+        return get(key, true);
+    }
+    
+    /**
+     * @param count Whether to count the lookup as a hit or miss in the stats
+     */
+    @Nullable
+    protected V get(@NotNull K key, boolean count){
+        CacheEntry<K, V> entry = lookup(key, count);
+        return entry == null ? null : entry.getValue();
+    }
+    
+    /**
+     * Finds the entry for key and records a hit on it, or a miss.
+     *
+     * @param count Whether to count the lookup as a hit or miss in the stats
+     */
+    @Nullable
+    protected CacheEntry<K, V> lookup(@NotNull K key, boolean count){
         CacheEntry<K, V> entry = entries.get(key);
-        if(entry == null)
+        if(entry == null){
+            if(count)
+                stats.recordMiss();
             return null;
+        }
         
-        // increment frequency and restructure
-        entry.incrementFreq();
-        frequency.get(entry.getTier()).restructure(entry);
+        hit(entry, count);
+        return entry;
+    }
+    
+    /**
+     * Records a hit on an entry, i.e one the caller looked up earlier and held on to.
+     *
+     * @param count Whether to count it as a hit in the stats
+     */
+    protected void hit(@NotNull CacheEntry<K, V> entry, boolean count){
+        if(count)
+            stats.recordHit();
+        recordAccess(entry);
+    }
     
-        // then try to promote
-        updateTiers(entry.getTier());
+    /**
+     * Returns the cached value for key, loading and caching it first if needed. The lookup isn't counted as a hit or
+     * miss in the stats, since callers tend to have just missed with {@link #get(Object)} themselves.
+     *
+     * @return the value, or null if the loader declined to produce one
+     * @throws IOException if the loader failed
+     */
+    @Nullable
+    public V computeIfAbsent(@NotNull K key, @NotNull CacheLoader<K, V> loader) throws IOException {
+        return computeIfAbsent(key, 1, loader);
+    }
+    
+    /**
+     * Like {@link #computeIfAbsent(Object, CacheLoader)}, but a loaded value is inserted as though it had already
+     * been hit freq times.
+     */
+    @Nullable
+    public V computeIfAbsent(@NotNull K key, int freq, @NotNull CacheLoader<K, V> loader) throws IOException {
+        V cached = get(key, false);
+        if(cached != null)
+            return cached;
         
-        return entry.getValue();
+        V value = load(key, loader);
+        if(value != null)
+            putLoaded(key, value, freq);
+        return value;
     }
     
     public boolean contains(@Nullable K key){
@@ -66,88 +176,170 @@ public abstract class TieredCache<K, V> {
         return entries.containsKey(key);
     }
     
+    /**
+     * Drops a cached entry outside of the eviction order, i.e because what it caches has changed. Unlike eviction, this
+     * isn't counted in the stats or passed to the eviction listener.
+     *
+     * @return false if key wasn't cached
+     */
+    public boolean invalidate(@NotNull K key){
+        CacheEntry<K, V> entry = entries.remove(key);
+        if(entry == null)
+            return false;
+        
+        policy.remove(entry);
+        weight -= entry.getWeight();
+        entry.retire();
+        return true;
+    }
+    
+    /**
+     * Changes the capacity, evicting entries in policy order right away if they no longer fit.
+     */
+    public void setCapacity(long capacity){
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        
+        this.capacity = capacity;
+        policy.setCapacity(capacity);
+        while(weight > capacity)
+            evict();
+    }
+    
+    /**
+     * Finishes giving back the memory freed up by lowering the capacity, where that couldn't all happen right away.
+     * Caches whose entries live on the heap leave it to the garbage collector, and never know.
+     *
+     * @return whether some of it is still held, i.e by entries that were being read
+     */
+    public boolean releaseMemory(){
+        return false;
+    }
+    
     public void clear(){
-        initialize();
+        for(CacheEntry<K, V> entry : entries.values())
+            entry.retire();
+        
+        entries.clear();
+        policy.clear();
+        weight = 0;
+    }
+    
+    /**
+     * Passes every cached entry to action, i.e to take a snapshot of the cache. The entries must not be modified.
+     */
+    public void forEachEntry(@NotNull Consumer<CacheEntry<K, V>> action){
+        entries.values().forEach(action);
+    }
+    
+    /**
+     * Sets a callback that is told the key of every evicted entry. It runs while the cache is being modified, so it
+     * must be quick and must not call back into the cache.
+     */
+    public void setEvictionListener(@Nullable Consumer<K> listener){
+        this.evictionListener = listener;
+    }
+    
+    @NotNull
+    public CacheStats getStats(){
+        return stats;
+    }
+    
+    public long getCapacity(){
+        return capacity;
+    }
+    
+    /**
+     * @return the total weight of all cached entries
+     */
+    public long getWeight(){
+        return weight;
+    }
+    
+    public long getWeight(@NotNull CacheTier tier){
+        return policy.getWeight(tier);
+    }
+    
+    public int size(){
+        return entries.size();
     }
     
     protected CacheEntry<K, V> getEntry(K key){
         return entries.get(key);
     }
     
-    private void initialize(){
-        if(!entries.isEmpty()){
-            for(CacheEntry<K, V> entry : entries.values())
-                entry.clean();
-        }
-    
-        this.entries.clear();
-        this.frequency.clear();
-        
-        for(CacheTier tier : CacheTier.values())
-            this.frequency.put(tier, new SimpleStructuredList<>(capacity));
-    
-        this.size = 0;
-    }
-    
-    private void updateTiers(@NotNull CacheTier tier){
-        if(isTierFull(tier) && tier.next() != null && !isTierFull(tier.next())){
-            // unconditionally promote highest to next tier
-            CacheEntry<K, V> highest = frequency.get(tier).popHighest();
-            frequency.get(tier.next()).add(highest);
-            highest.setTier(tier.next());
-        } else {
-            // try to promote elements by default
-            if(!trySwapEnds(tier, tier.next())){
-                // otherwise, try to demote them
-                trySwapEnds(tier.prev(), tier);
-            }
+    /**
+     * Runs a loader, recording how long it took.
+     */
+    @Nullable
+    protected V load(@NotNull K key, @NotNull CacheLoader<K, V> loader) throws IOException {
+        long start = System.nanoTime();
+        try {
+            V value = loader.load(key);
+            stats.recordLoad(System.nanoTime() - start);
+            return value;
+        } catch(IOException | RuntimeException | Error exc){
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw exc;
         }
     }
     
-    private boolean trySwapEnds(CacheTier fromTier, CacheTier toTier){
-        StructuredList<CacheEntry<K, V>> from = frequency.get(fromTier);
-        StructuredList<CacheEntry<K, V>> to = frequency.get(toTier);
-        
-        // nothing to try swapping from/to
-        if(from == null || to == null || from.isEmpty() || to.isEmpty())
-            return false;
-        
-        // from is higher than to
-        if(from.getHighest().compareTo(to.getLowest()) > 0){
-            // pop them from their respective lists
-            CacheEntry<K, V> highest = from.popHighest();
-            CacheEntry<K, V> lowest = to.popLowest();
-    
-            // insert into new list
-            from.add(lowest);
-            to.add(highest);
-            
-            // swap tiers
-            swapTiers(lowest, highest);
-            return true;
+    /**
+     * Inserts a value produced by a {@link CacheLoader}. Nobody else holds on to it, so if it can't be inserted it's
+     * retired just like an evicted entry would be.
+     */
+    protected void putLoaded(@NotNull K key, @NotNull V value, int freq){
+        try {
+            put(key, value, freq);
+        } catch(RuntimeException exc){
+            makeEntry(key, value).retire();
+            throw exc;
         }
-        
-        return false;
     }
     
-    private void swapTiers(CacheEntry<K, V> a, CacheEntry<K, V> b){
-        CacheTier bTmp = b.getTier();
-        b.setTier(a.getTier());
-        a.setTier(bTmp);
+    /**
+     * Records a hit on a cached entry with the eviction policy.
+     */
+    protected void recordAccess(@NotNull CacheEntry<K, V> entry){
+        policy.access(entry);
     }
     
-    private int getThresholdFor(CacheTier tier){
-        return (int)(capacity * tier.getScale());
+    /**
+     * Evicts the policy's next victim regardless of how full the cache is, i.e when memory backing the values has
+     * run out before the weight limit was reached.
+     *
+     * @return false if the cache was already empty
+     */
+    protected boolean evictNext(){
+        if(entries.isEmpty())
+            return false;
+        
+        evict();
+        return true;
     }
     
-    private boolean isTierFull(CacheTier tier){
-        return frequency.get(tier).size() > getThresholdFor(tier);
+    /**
+     * Called for every evicted entry before it's retired, while the cache is still locked. Subclasses may
+     * {@link CacheEntry#pin() pin} it to keep using its value for a while.
+     */
+    protected void evicted(@NotNull CacheEntry<K, V> victim){}
+    
+    private void evict(){
+        CacheEntry<K, V> victim = policy.evict();
+        if(victim == null)
+            throw new IllegalStateException("Nothing to evict but weight is " + weight);
+        
+        entries.remove(victim.getKey());
+        weight -= victim.getWeight();
+        stats.recordEviction(victim.getWeight());
+        evicted(victim);
+        victim.retire();
+        if(evictionListener != null)
+            evictionListener.accept(victim.getKey());
     }
     
     public void printStats(){
-        for(CacheTier tier : CacheTier.values()){
-            StructuredList.printList(frequency.get(tier));
-        }
+        policy.printStats();
     }
     
 }
@@ -0,0 +1,278 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The original RARELY/CONSTANTLY scheme: every tier is a {@link StructuredList} sorted by frequency, entries bubble
+ * up their tier on each hit and get swapped into the next tier once they beat its lowest entry. Each tier may hold
+ * up to {@link CacheTier#getScale()} of the capacity.
+ *
+ * Every decayInterval hits, all frequencies are halved. Entries in higher tiers that have since been overtaken by a
+ * lower tier are swapped down, and those that have gone cold entirely (frequency 0) are demoted outright, so they
+ * become eviction candidates again instead of staying pinned forever.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class TieredPolicy<K, V> implements EvictionPolicy<K, V> {
+    
+    // upper bound for the initial size of the per-tier lists; the capacity may be a byte count
+    private static final int MAX_INITIAL_LIST_SIZE = 1024;
+    public static final int DEFAULT_DECAY_INTERVAL = 100_000;
+    
+    private final Map<CacheTier, StructuredList<CacheEntry<K, V>>> frequency;
+    private final IntFunction<StructuredList<CacheEntry<K, V>>> listFactory;
+    private final long[] tierWeights;
+    
+    private long capacity;
+    private final int decayInterval;
+    private int accesses = 0;
+    private CacheStats stats = new CacheStats();
+    
+    public TieredPolicy(long capacity){
+        this(capacity, SimpleStructuredList::new);
+    }
+    
+    /**
+     * @param capacity    Maximum total weight of all entries
+     * @param listFactory Creates the list backing each tier, given an initial size (i.e FrequencyBucketList::new)
+     */
+    public TieredPolicy(long capacity, @NotNull IntFunction<StructuredList<CacheEntry<K, V>>> listFactory){
+        this(capacity, listFactory, DEFAULT_DECAY_INTERVAL);
+    }
+    
+    /**
+     * @param capacity      Maximum total weight of all entries
+     * @param listFactory   Creates the list backing each tier, given an initial size (i.e FrequencyBucketList::new)
+     * @param decayInterval Number of hits between halving every frequency, or 0 to never decay
+     */
+    public TieredPolicy(long capacity, @NotNull IntFunction<StructuredList<CacheEntry<K, V>>> listFactory,
+                        int decayInterval){
+        if(decayInterval < 0)
+            throw new IllegalArgumentException("Decay interval must not be negative: " + decayInterval);
+        this.capacity = capacity;
+        this.listFactory = listFactory;
+        this.decayInterval = decayInterval;
+        this.frequency = new EnumMap<>(CacheTier.class);
+        this.tierWeights = new long[CacheTier.values().length];
+        
+        clear();
+    }
+    
+    @Override
+    public void add(@NotNull CacheEntry<K, V> entry){
+        StructuredList<CacheEntry<K, V>> rarely = frequency.get(CacheTier.RARELY);
+        entry.setTier(CacheTier.RARELY);
+        rarely.add(entry);
+        tierWeights[CacheTier.RARELY.ordinal()] += entry.getWeight();
+        
+        // restored entries may already be well above the rest; sort them in and let them earn their tier
+        if(entry.getFreq() > 1){
+            rarely.restructure(entry);
+            updateTiers(CacheTier.RARELY);
+        }
+    }
+    
+    @Override
+    public void access(@NotNull CacheEntry<K, V> entry){
+        // increment frequency and restructure
+        entry.incrementFreq();
+        frequency.get(entry.getTier()).restructure(entry);
+        
+        // then try to promote
+        updateTiers(entry.getTier());
+        
+        if(decayInterval > 0 && ++accesses >= decayInterval){
+            accesses = 0;
+            decay();
+        }
+    }
+    
+    @Override
+    @Nullable
+    public CacheEntry<K, V> evict(){
+        // prefer rarely used entries, only dipping into higher tiers once those are exhausted
+        for(CacheTier tier = CacheTier.RARELY; tier != null; tier = tier.next()){
+            StructuredList<CacheEntry<K, V>> list = frequency.get(tier);
+            if(list.isEmpty())
+                continue;
+            
+            CacheEntry<K, V> lowest = list.popLowest();
+            tierWeights[tier.ordinal()] -= lowest.getWeight();
+            return lowest;
+        }
+        return null;
+    }
+    
+    @Override
+    public void remove(@NotNull CacheEntry<K, V> entry){
+        CacheTier tier = entry.getTier();
+        frequency.get(tier).remove(entry);
+        tierWeights[tier.ordinal()] -= entry.getWeight();
+    }
+    
+    @Override
+    public void setCapacity(long capacity){
+        this.capacity = capacity;
+        
+        // higher tiers give up their least frequent entries until they fit their share again
+        for(CacheTier tier = CacheTier.CONSTANTLY; tier != null && tier.prev() != null; tier = tier.prev()){
+            StructuredList<CacheEntry<K, V>> list = frequency.get(tier);
+            while(isTierFull(tier) && !list.isEmpty()){
+                CacheEntry<K, V> lowest = list.popLowest();
+                frequency.get(tier.prev()).add(lowest);
+                moveWeight(lowest, tier, tier.prev());
+                lowest.setTier(tier.prev());
+            }
+        }
+    }
+    
+    @Override
+    public long getWeight(@NotNull CacheTier tier){
+        return tierWeights[tier.ordinal()];
+    }
+    
+    @Override
+    public void clear(){
+        this.frequency.clear();
+        
+        int initialSize = (int)Math.min(capacity, MAX_INITIAL_LIST_SIZE);
+        for(CacheTier tier : CacheTier.values())
+            this.frequency.put(tier, listFactory.apply(initialSize));
+        
+        Arrays.fill(tierWeights, 0);
+        accesses = 0;
+    }
+    
+    /**
+     * Halves the frequency of every entry, then demotes entries that no longer deserve their tier.
+     */
+    public void decay(){
+        for(CacheTier tier : CacheTier.values()){
+            StructuredList<CacheEntry<K, V>> list = frequency.get(tier);
+            List<CacheEntry<K, V>> sorted = new ArrayList<>(list.size());
+            for(CacheEntry<K, V> entry : list){
+                entry.decayFreq();
+                sorted.add(entry);
+            }
+            
+            // halving keeps the order but merges neighbouring frequencies, so rebuild each list; adding from
+            // highest to lowest means every add is a cheap insert at the low end
+            StructuredList<CacheEntry<K, V>> rebuilt = listFactory.apply(Math.max(sorted.size(), 1));
+            for(int i = sorted.size() - 1; i >= 0; i--)
+                rebuilt.add(sorted.get(i));
+            frequency.put(tier, rebuilt);
+        }
+        
+        for(CacheTier tier : CacheTier.values()){
+            CacheTier lower = tier.prev();
+            if(lower == null)
+                continue;
+            
+            // anything in the lower tier that has overtaken us now takes our place
+            while(trySwapEnds(lower, tier)){
+                // each swap moves one entry each way; keep going until the ends are in order
+            }
+            
+            // and whatever wasn't hit in the last couple of intervals drops back down outright
+            StructuredList<CacheEntry<K, V>> list = frequency.get(tier);
+            while(!list.isEmpty() && list.getLowest().getFreq() == 0){
+                CacheEntry<K, V> stale = list.popLowest();
+                frequency.get(lower).add(stale);
+                moveWeight(stale, tier, lower);
+                stale.setTier(lower);
+            }
+        }
+    }
+    
+    @Override
+    public void setStats(@NotNull CacheStats stats){
+        this.stats = stats;
+    }
+    
+    @Override
+    public void printStats(){
+        for(CacheTier tier : CacheTier.values()){
+            System.out.print(tier + " (" + tierWeights[tier.ordinal()] + "/" + getThresholdFor(tier) + "): ");
+            StructuredList.printList(frequency.get(tier));
+        }
+    }
+    
+    private void updateTiers(@NotNull CacheTier tier){
+        if(isTierFull(tier) && tier.next() != null && !isTierFull(tier.next())){
+            // unconditionally promote highest to next tier
+            CacheEntry<K, V> highest = frequency.get(tier).popHighest();
+            frequency.get(tier.next()).add(highest);
+            moveWeight(highest, tier, tier.next());
+            highest.setTier(tier.next());
+        } else {
+            // try to promote elements by default
+            if(!trySwapEnds(tier, tier.next())){
+                // otherwise, try to demote them
+                trySwapEnds(tier.prev(), tier);
+            }
+        }
+    }
+    
+    private boolean trySwapEnds(CacheTier fromTier, CacheTier toTier){
+        StructuredList<CacheEntry<K, V>> from = frequency.get(fromTier);
+        StructuredList<CacheEntry<K, V>> to = frequency.get(toTier);
+        
+        // nothing to try swapping from/to
+        if(from == null || to == null || from.isEmpty() || to.isEmpty())
+            return false;
+        
+        // from is higher than to
+        if(from.getHighest().compareTo(to.getLowest()) > 0){
+            // pop them from their respective lists
+            CacheEntry<K, V> highest = from.popHighest();
+            CacheEntry<K, V> lowest = to.popLowest();
+            
+            // insert into new list
+            from.add(lowest);
+            to.add(highest);
+            
+            // swap tiers
+            moveWeight(highest, fromTier, toTier);
+            moveWeight(lowest, toTier, fromTier);
+            swapTiers(lowest, highest);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    private void swapTiers(CacheEntry<K, V> a, CacheEntry<K, V> b){
+        CacheTier bTmp = b.getTier();
+        b.setTier(a.getTier());
+        a.setTier(bTmp);
+    }
+    
+    private void moveWeight(CacheEntry<K, V> entry, CacheTier from, CacheTier to){
+        tierWeights[from.ordinal()] -= entry.getWeight();
+        tierWeights[to.ordinal()] += entry.getWeight();
+        
+        // every tier change goes through here
+        if(to == from.next())
+            stats.recordPromotion();
+        else
+            stats.recordDemotion();
+    }
+    
+    private long getThresholdFor(CacheTier tier){
+        return (long)(capacity * tier.getScale());
+    }
+    
+    private boolean isTierFull(CacheTier tier){
+        return tierWeights[tier.ordinal()] > getThresholdFor(tier);
+    }
+    
+}
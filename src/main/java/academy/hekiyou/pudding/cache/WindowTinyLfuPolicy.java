@@ -0,0 +1,241 @@
+package academy.hekiyou.pudding.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * W-TinyLFU: new entries land in a small LRU admission window. Once the window overflows, its oldest entries spill
+ * into the main area. If the cache is full by then, each of them has to compete against the main area's next victim
+ * on a following eviction, and only stays if a {@link FrequencySketch} says it has been seen more often recently.
+ *
+ * The main area is a segmented LRU: entries enter on probation and are promoted to the protected segment on their
+ * next hit. When the protected segment overflows, its oldest entries are demoted back to probation.
+ *
+ * A one-off scan (i.e running find or md5sum over every file) therefore only churns the window; it cannot displace
+ * entries that are actually hit repeatedly. Window and probation entries report {@link CacheTier#RARELY}, protected
+ * entries report {@link CacheTier#CONSTANTLY}.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class WindowTinyLfuPolicy<K, V> implements EvictionPolicy<K, V> {
+    
+    private static final double WINDOW_SCALE = 0.01;
+    private static final double PROTECTED_SCALE = 0.8;
+    
+    // insertion-ordered, oldest first; re-adding an element moves it to the end
+    private final LinkedHashSet<CacheEntry<K, V>> window = new LinkedHashSet<>();
+    private final LinkedHashSet<CacheEntry<K, V>> probation = new LinkedHashSet<>();
+    private final LinkedHashSet<CacheEntry<K, V>> protectedSegment = new LinkedHashSet<>();
+    
+    private final FrequencySketch sketch = new FrequencySketch();
+    
+    private long capacity;
+    private long windowCapacity;
+    private long protectedCapacity;
+    private long windowWeight, probationWeight, protectedWeight;
+    
+    // entries spilled from the window onto probation that have yet to face an admission check, oldest first
+    private final LinkedHashSet<CacheEntry<K, V>> candidates = new LinkedHashSet<>();
+    private CacheStats stats = new CacheStats();
+    
+    public WindowTinyLfuPolicy(long capacity){
+        setCapacity(capacity);
+    }
+    
+    @Override
+    public void add(@NotNull CacheEntry<K, V> entry){
+        sketch.ensureCapacity(size() + 1);
+        // restored entries bring their past popularity with them, up to what the sketch can count
+        for(int i = Math.min(entry.getFreq(), FrequencySketch.MAX_COUNT); i > 0; i--)
+            sketch.increment(entry.getKey());
+        
+        entry.setTier(CacheTier.RARELY);
+        window.add(entry);
+        windowWeight += entry.getWeight();
+        
+        // the cache makes room before adding, so it's full once it's within about an entry of its capacity; until
+        // then nothing has to make way for the spills, so they (and any earlier ones) are in without a check
+        long slack = Math.max(windowCapacity, entry.getWeight());
+        boolean full = windowWeight + probationWeight + protectedWeight > capacity - slack;
+        if(!full)
+            candidates.clear();
+        
+        // spill the oldest window entries onto probation, each one to face an admission check on a later eviction
+        while(windowWeight > windowCapacity && window.size() > 1){
+            CacheEntry<K, V> oldest = first(window);
+            window.remove(oldest);
+            windowWeight -= oldest.getWeight();
+            addToProbation(oldest);
+            if(full)
+                candidates.add(oldest);
+        }
+    }
+    
+    @Override
+    public void access(@NotNull CacheEntry<K, V> entry){
+        entry.incrementFreq();
+        sketch.increment(entry.getKey());
+        
+        if(window.remove(entry)){
+            window.add(entry);
+        } else if(probation.remove(entry)){
+            probationWeight -= entry.getWeight();
+            candidates.remove(entry);
+            promote(entry);
+        } else if(protectedSegment.remove(entry)){
+            protectedSegment.add(entry);
+        }
+    }
+    
+    @Override
+    @Nullable
+    public CacheEntry<K, V> evict(){
+        CacheEntry<K, V> candidate = first(candidates);
+        if(candidate != null){
+            // the oldest pending spill only stays if it's been seen more often than the entry it would displace
+            candidates.remove(candidate);
+            CacheEntry<K, V> victim = mainVictim();
+            if(victim == null || !admit(candidate, victim))
+                victim = candidate;
+            removeFromMain(victim);
+            return victim;
+        }
+        
+        CacheEntry<K, V> victim = first(probation);
+        if(victim != null){
+            removeFromMain(victim);
+            return victim;
+        }
+        
+        victim = first(protectedSegment);
+        if(victim != null){
+            removeFromMain(victim);
+            return victim;
+        }
+        
+        victim = first(window);
+        if(victim != null){
+            window.remove(victim);
+            windowWeight -= victim.getWeight();
+        }
+        return victim;
+    }
+    
+    @Override
+    public void remove(@NotNull CacheEntry<K, V> entry){
+        if(window.remove(entry))
+            windowWeight -= entry.getWeight();
+        else
+            removeFromMain(entry);
+        candidates.remove(entry);
+    }
+    
+    @Override
+    public long getWeight(@NotNull CacheTier tier){
+        switch(tier){
+            case CONSTANTLY:    return protectedWeight;
+            case RARELY:        return windowWeight + probationWeight;
+            default:            return 0;
+        }
+    }
+    
+    @Override
+    public void clear(){
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowWeight = probationWeight = protectedWeight = 0;
+        candidates.clear();
+    }
+    
+    @Override
+    public void setStats(@NotNull CacheStats stats){
+        this.stats = stats;
+    }
+    
+    @Override
+    public void setCapacity(long capacity){
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (long)(capacity * WINDOW_SCALE));
+        this.protectedCapacity = (long)((capacity - windowCapacity) * PROTECTED_SCALE);
+        
+        // overflowing protected entries move to probation, where they're first in line for eviction
+        while(protectedWeight > protectedCapacity && !protectedSegment.isEmpty()){
+            CacheEntry<K, V> oldest = first(protectedSegment);
+            protectedSegment.remove(oldest);
+            protectedWeight -= oldest.getWeight();
+            addToProbation(oldest);
+            stats.recordDemotion();
+        }
+    }
+    
+    @Override
+    public void printStats(){
+        System.out.printf("W-TinyLFU: window %d (%d/%d), probation %d (%d), protected %d (%d/%d)\n",
+                window.size(), windowWeight, windowCapacity,
+                probation.size(), probationWeight,
+                protectedSegment.size(), protectedWeight, protectedCapacity);
+    }
+    
+    private void promote(@NotNull CacheEntry<K, V> entry){
+        stats.recordPromotion();
+        entry.setTier(CacheTier.CONSTANTLY);
+        protectedSegment.add(entry);
+        protectedWeight += entry.getWeight();
+        
+        // demote the oldest protected entries to make room, but never the one we just promoted
+        while(protectedWeight > protectedCapacity && protectedSegment.size() > 1){
+            CacheEntry<K, V> oldest = first(protectedSegment);
+            protectedSegment.remove(oldest);
+            protectedWeight -= oldest.getWeight();
+            addToProbation(oldest);
+            stats.recordDemotion();
+        }
+    }
+    
+    /**
+     * @return the entry of the main area next in line for eviction that isn't itself waiting for admission, or null
+     */
+    @Nullable
+    private CacheEntry<K, V> mainVictim(){
+        // pending spills were added to probation last, so this rarely has to skip many
+        for(CacheEntry<K, V> entry : probation){
+            if(!candidates.contains(entry))
+                return entry;
+        }
+        return first(protectedSegment);
+    }
+    
+    private boolean admit(@NotNull CacheEntry<K, V> candidate, @NotNull CacheEntry<K, V> victim){
+        return sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey());
+    }
+    
+    private void addToProbation(@NotNull CacheEntry<K, V> entry){
+        entry.setTier(CacheTier.RARELY);
+        probation.add(entry);
+        probationWeight += entry.getWeight();
+    }
+    
+    private void removeFromMain(@NotNull CacheEntry<K, V> entry){
+        if(probation.remove(entry)){
+            probationWeight -= entry.getWeight();
+        } else if(protectedSegment.remove(entry)){
+            protectedWeight -= entry.getWeight();
+        }
+    }
+    
+    private int size(){
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+    
+    @Nullable
+    private static <E> E first(@NotNull LinkedHashSet<E> set){
+        Iterator<E> iter = set.iterator();
+        return iter.hasNext() ? iter.next() : null;
+    }
+    
+}
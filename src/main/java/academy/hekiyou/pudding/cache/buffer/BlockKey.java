@@ -0,0 +1,51 @@
+package academy.hekiyou.pudding.cache.buffer;
+
+import academy.hekiyou.pudding.fs.PuddingFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Identifies one fixed-size block of a file, so that only the parts of a file that are actually read get cached.
+ */
+public final class BlockKey {
+    
+    @NotNull
+    private final PuddingFile file;
+    private final long index;
+    
+    private final int hash;
+    
+    public BlockKey(@NotNull PuddingFile file, long index){
+        this.file = file;
+        this.index = index;
+        // precompute the hash for performance; keys are recreated for every lookup
+        this.hash = 31 * file.hashCode() + Long.hashCode(index);
+    }
+    
+    @NotNull
+    public PuddingFile getFile(){
+        return file;
+    }
+    
+    public long getIndex(){
+        return index;
+    }
+    
+    @Override
+    public boolean equals(Object o){
+        if(this == o) return true;
+        if(o == null || getClass() != o.getClass()) return false;
+        BlockKey that = (BlockKey) o;
+        return index == that.index && file == that.file;
+    }
+    
+    @Override
+    public int hashCode(){
+        return hash;
+    }
+    
+    @Override
+    public String toString(){
+        return file + "#" + index;
+    }
+    
+}
@@ -0,0 +1,89 @@
+package academy.hekiyou.pudding.cache.buffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Direct buffers for staging I/O, reused rather than allocated for every read.
+ *
+ * Buffers come in power-of-two size classes. Each thread holds on to the last buffer of every class it gave back, so a
+ * thread that keeps loading gets the same buffer again without touching anything shared. Beyond that, each class
+ * keeps a bounded number of buffers for any thread to take; buffers given back once that's full are left to the
+ * garbage collector, as are requests larger than the largest class.
+ */
+public final class BufferPool {
+    
+    private final int minShift;
+    private final int maxShift;
+    private final ArrayBlockingQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<ByteBuffer[]> local;
+    
+    /**
+     * @param minSize  Smallest buffer handed out; rounded up to a power of two
+     * @param maxSize  Largest buffer that's pooled; rounded up to a power of two
+     * @param perClass Buffers kept per size class for sharing between threads, on top of those held by each thread
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, int perClass){
+        if(minSize <= 0 || maxSize < minSize || perClass <= 0)
+            throw new IllegalArgumentException("Bad pool sizes: " + minSize + ", " + maxSize + ", " + perClass);
+        
+        this.minShift = shiftFor(minSize);
+        this.maxShift = shiftFor(maxSize);
+        int classes = maxShift - minShift + 1;
+        this.shared = new ArrayBlockingQueue[classes];
+        for(int i = 0; i < classes; i++)
+            shared[i] = new ArrayBlockingQueue<>(perClass);
+        this.local = ThreadLocal.withInitial(() -> new ByteBuffer[classes]);
+    }
+    
+    /**
+     * @return a direct buffer with room for at least length bytes, positioned at 0 and limited to length. It should
+     *         be {@link #release(ByteBuffer) released} once done with.
+     */
+    @NotNull
+    public ByteBuffer acquire(int length){
+        if(length <= 0)
+            throw new IllegalArgumentException("Cannot acquire " + length + " bytes");
+        
+        ByteBuffer buffer;
+        if(length > 1 << maxShift){
+            buffer = ByteBuffer.allocateDirect(length);
+        } else {
+            int sizeClass = Math.max(shiftFor(length), minShift) - minShift;
+            ByteBuffer[] held = local.get();
+            buffer = held[sizeClass];
+            held[sizeClass] = null;
+            if(buffer == null)
+                buffer = shared[sizeClass].poll();
+            if(buffer == null)
+                buffer = ByteBuffer.allocateDirect(1 << (sizeClass + minShift));
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+    
+    /**
+     * Gives a buffer from {@link #acquire(int)} back. It must not be used afterwards.
+     */
+    public void release(@NotNull ByteBuffer buffer){
+        int capacity = buffer.capacity();
+        if(Integer.bitCount(capacity) != 1 || capacity < 1 << minShift || capacity > 1 << maxShift)
+            return;
+        
+        int sizeClass = shiftFor(capacity) - minShift;
+        ByteBuffer[] held = local.get();
+        if(held[sizeClass] == null)
+            held[sizeClass] = buffer;
+        else
+            shared[sizeClass].offer(buffer);
+    }
+    
+    private static int shiftFor(int size){
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+    
+}
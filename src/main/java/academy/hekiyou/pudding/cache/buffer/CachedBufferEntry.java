@@ -1,30 +1,32 @@
 package academy.hekiyou.pudding.cache.buffer;
 
 import academy.hekiyou.pudding.cache.CacheEntry;
-import academy.hekiyou.pudding.fs.PuddingFile;
 import jnr.ffi.Pointer;
-import jnr.ffi.Runtime;
-import sun.nio.ch.DirectBuffer;
 
-import java.nio.ByteBuffer;
-
-public class CachedBufferEntry extends CacheEntry<PuddingFile, ByteBuffer> {
+public class CachedBufferEntry extends CacheEntry<BlockKey, SlabSlot> {
     
-    private final Pointer pointer;
+    // resolved once, for readers that copy straight from the address
+    private final long address;
     
-    public CachedBufferEntry(PuddingFile key, ByteBuffer value){
+    public CachedBufferEntry(BlockKey key, SlabSlot value){
         super(key, value);
-        this.pointer = Pointer.wrap(Runtime.getSystemRuntime(), value);
+        this.address = value.getPointer().address();
     }
     
     public Pointer getPointer(){
-        return pointer;
+        return getValue().getPointer();
+    }
+    
+    /**
+     * @return native address of the block's first byte, only to be read from while the entry is pinned
+     */
+    public long getAddress(){
+        return address;
     }
     
     @Override
-    public void clean(){
-        if(getValue() instanceof DirectBuffer)
-            ((DirectBuffer)getValue()).cleaner().clean();
+    protected void clean(){
+        getValue().release();
     }
     
 }
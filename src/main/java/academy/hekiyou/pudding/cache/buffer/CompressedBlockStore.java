@@ -0,0 +1,186 @@
+package academy.hekiyou.pudding.cache.buffer;
+
+import academy.hekiyou.pudding.cache.CacheEntry;
+import academy.hekiyou.pudding.cache.ConcurrentTieredCache;
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
+import academy.hekiyou.pudding.cache.TieredPolicy;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps blocks evicted from a {@link TieredBufferCache} LZ4-compressed in an arena of its own, so that missing on them
+ * again costs a decompression instead of a disk read.
+ *
+ * Evicted blocks are copied into pooled buffers and compressed from there on a background thread, so that the slots
+ * they were evicted from are free right away. Blocks that wouldn't shrink into a smaller slot aren't kept, and neither
+ * are any that come in while the thread is too far behind.
+ */
+public class CompressedBlockStore extends ConcurrentTieredCache<BlockKey, SlabSlot> {
+    
+    // evicted blocks waiting to be compressed before further ones are dropped
+    private static final int QUEUE_DEPTH = 16;
+    
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+    
+    private final SlabArena arena;
+    private final LZ4Compressor compressor = LZ4.fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+    private final ThreadPoolExecutor executor;
+    // copies of evicted blocks waiting to be compressed, one per queued block plus the one being compressed
+    private final BufferPool pending;
+    // only touched by the executor's single thread
+    private final ByteBuffer staging;
+    
+    /**
+     * @param capacity  Maximum number of bytes the compressed blocks may occupy
+     * @param blockSize Largest block that will be stored
+     */
+    public CompressedBlockStore(long capacity, int blockSize){
+        super(capacity, cap -> new TieredPolicy<>(cap, FrequencyBucketList::new));
+        int minSlotSize = Math.min(TieredBufferCache.MIN_SLOT_SIZE, blockSize);
+        this.arena = new SlabArena(capacity, minSlotSize, blockSize);
+        this.staging = ByteBuffer.allocateDirect(compressor.maxCompressedLength(blockSize));
+        this.pending = new BufferPool(minSlotSize, blockSize, QUEUE_DEPTH + 1);
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_DEPTH),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "pudding-compress");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+    
+    @Override
+    protected long weigh(@NotNull BlockKey key, @NotNull SlabSlot value){
+        return value.getCapacity();
+    }
+    
+    @Override
+    public @NotNull CacheEntry<BlockKey, SlabSlot> makeEntry(BlockKey key, SlabSlot value){
+        // holds the compressed block, which only the store knows how to read
+        return new CachedBufferEntry(key, value);
+    }
+    
+    /**
+     * Copies an evicted block to compress it in the background. Called while the evicting cache is locked, so it
+     * doesn't wait for the compressor: blocks that come in while it's too far behind are dropped before being copied.
+     */
+    void offer(@NotNull BlockKey key, @NotNull SlabSlot slot){
+        if(executor.getQueue().remainingCapacity() == 0)
+            return;
+        
+        int length = key.getFile().getBlockLength(key.getIndex());
+        ByteBuffer copy = pending.acquire(length);
+        ByteBuffer source = slot.getBuffer();
+        source.limit(length);
+        copy.put(source);
+        try {
+            executor.execute(() -> {
+                try {
+                    compress(key, copy, length);
+                } finally {
+                    pending.release(copy);
+                }
+            });
+        } catch(RejectedExecutionException exc){
+            pending.release(copy);
+        }
+    }
+    
+    /**
+     * Decompresses a stored block into dst (from its position up to its limit), then drops it from the store, since
+     * it's about to be cached uncompressed again.
+     *
+     * @return false if the block wasn't stored
+     */
+    boolean take(@NotNull BlockKey key, @NotNull ByteBuffer dst){
+        if(!copy(key, dst))
+            return false;
+        invalidate(key);
+        return true;
+    }
+    
+    /**
+     * Decompresses a stored block into dst (from its position up to its limit), leaving it stored.
+     *
+     * @return false if the block wasn't stored
+     */
+    boolean copy(@NotNull BlockKey key, @NotNull ByteBuffer dst){
+        CacheEntry<BlockKey, SlabSlot> entry = lookup(key, true);
+        if(entry == null || !entry.pin())
+            return false;
+        
+        try {
+            // the codec works on absolute offsets, so sharing the slot's buffer between readers is fine; it also
+            // doesn't need the compressed length, only the original one
+            int length = dst.remaining();
+            decompressor.decompress(entry.getValue().getBuffer(), 0, dst, dst.position(), length);
+            dst.position(dst.position() + length);
+        } finally {
+            entry.unpin();
+        }
+        return true;
+    }
+    
+    /**
+     * @param source Copy of the block, with room for as much as its slot had
+     */
+    private void compress(@NotNull BlockKey key, @NotNull ByteBuffer source, int length){
+        if(contains(key))
+            return;
+        
+        int compressed = compressor.compress(source, 0, length, staging, 0, staging.capacity());
+        
+        // slots come in powers of two, so anything over half doesn't save a byte
+        if(compressed > source.capacity() / 2)
+            return;
+        // the store may have been shrunk to less than a slot under memory pressure
+        if(source.capacity() / 2 > getCapacity())
+            return;
+        
+        SlabSlot slot = allocate(compressed);
+        if(slot == null)
+            return;
+        
+        ByteBuffer target = slot.getBuffer();
+        ByteBuffer compressedData = staging.duplicate();
+        compressedData.position(0).limit(compressed);
+        target.put(compressedData);
+        putLoaded(key, slot, 1);
+    }
+    
+    @Nullable
+    private SlabSlot allocate(int length){
+        SlabSlot slot = arena.allocate(length);
+        for(int i = 0; slot == null && i < TieredBufferCache.MAX_ALLOCATE_EVICTIONS && evictNext(); i++)
+            slot = arena.allocate(length);
+        return slot;
+    }
+    
+    @Override
+    public void setCapacity(long capacity){
+        super.setCapacity(capacity);
+        arena.setBudget(capacity);
+        arena.drain(this);
+    }
+    
+    @Override
+    public boolean releaseMemory(){
+        return arena.drain(this);
+    }
+    
+    @Override
+    public void printStats(){
+        System.out.println("Compressed: " + size() + " blocks in " + getWeight() + "/" + getCapacity() + " bytes");
+        System.out.println(arena);
+    }
+    
+}
@@ -0,0 +1,352 @@
+package academy.hekiyou.pudding.cache.buffer;
+
+import academy.hekiyou.pudding.cache.TieredCache;
+import com.kenai.jffi.MemoryIO;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Off-heap memory for cached blocks, handed out as {@link SlabSlot}s.
+ *
+ * Memory is reserved in large native regions which are carved into equal slots of one power-of-two size class. Each
+ * size class keeps the regions it owns that still have free slots; a region whose slots all come back is handed to
+ * whichever class needs one next (except for the last region of a class, which is kept to avoid re-carving).
+ * Regions are only let go of when the budget is lowered, so the arena's footprint is fixed at no more than its budget
+ * plus one region per size class, and steady-state allocation creates no garbage.
+ *
+ * A lowered budget is only worth anything once whole regions are let go of, and freeing slots in eviction order
+ * scatters them over every region. So the cache holding the slots {@link #drain(TieredCache) drains} the regions
+ * over the budget, those with the fewest slots in use first: no more slots are handed out from them, and whatever
+ * they hold is evicted. Regions are freed as soon as they're let go of rather than whenever the garbage collector
+ * gets to them. While over budget, one completely free region is still kept back, so that a size class left without
+ * a region of its own can take it rather than wait for one of its own slots to free up.
+ */
+public class SlabArena {
+    
+    private static final int MIN_REGION_SIZE = 4 * 1024 * 1024;
+    // free regions kept back while over budget, for size classes that have none
+    private static final int SPARE_REGIONS = 1;
+    private static final MemoryIO MEMORY = MemoryIO.getInstance();
+    
+    private final Runtime runtime = Runtime.getSystemRuntime();
+    
+    private final int minSlotShift;
+    private final int maxSlotShift;
+    private final int regionSize;
+    private final int classes;
+    private int maxRegions;
+    
+    private final List<Region> regions = new ArrayList<>();
+    private final ArrayDeque<Region> freeRegions = new ArrayDeque<>();
+    // per size class: owned regions that still have at least one free slot
+    private final ArrayDeque<Region>[] partial;
+    
+    private long usedBytes = 0;
+    
+    /**
+     * @param budget      Total number of bytes the slots may add up to
+     * @param minSlotSize Smallest slot handed out; rounded up to a power of two
+     * @param maxSlotSize Largest slot handed out; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public SlabArena(long budget, int minSlotSize, int maxSlotSize){
+        if(minSlotSize <= 0 || maxSlotSize < minSlotSize)
+            throw new IllegalArgumentException("Bad slot sizes: " + minSlotSize + ", " + maxSlotSize);
+        
+        this.minSlotShift = shiftFor(minSlotSize);
+        this.maxSlotShift = shiftFor(maxSlotSize);
+        this.regionSize = Math.max(MIN_REGION_SIZE, 1 << maxSlotShift);
+        
+        this.classes = maxSlotShift - minSlotShift + 1;
+        this.maxRegions = regionsFor(budget);
+        
+        this.partial = new ArrayDeque[classes];
+        for(int i = 0; i < classes; i++)
+            partial[i] = new ArrayDeque<>();
+    }
+    
+    /**
+     * @return a slot of at least length bytes, or null if the arena has run out of regions for its size class
+     */
+    @Nullable
+    public synchronized SlabSlot allocate(int length){
+        if(length <= 0 || length > (1 << maxSlotShift))
+            throw new IllegalArgumentException("Cannot allocate " + length + " bytes");
+        
+        int sizeClass = Math.max(shiftFor(length), minSlotShift) - minSlotShift;
+        ArrayDeque<Region> owned = partial[sizeClass];
+        
+        Region region = owned.peekFirst();
+        if(region == null){
+            region = takeRegion();
+            if(region == null)
+                return null;
+            
+            region.carve(sizeClass, 1 << (sizeClass + minSlotShift));
+            owned.addFirst(region);
+        }
+        
+        SlabSlot slot = region.pop();
+        if(region.isFull())
+            owned.pollFirst();
+        
+        usedBytes += slot.getCapacity();
+        return slot;
+    }
+    
+    synchronized void release(@NotNull SlabSlot slot){
+        Region region = slot.getRegion();
+        boolean wasFull = region.isFull();
+        region.push(slot);
+        usedBytes -= slot.getCapacity();
+        
+        if(region.draining){
+            if(region.isEmpty()){
+                region.draining = false;
+                freeRegions.push(region);
+                trim();
+            }
+            return;
+        }
+        
+        ArrayDeque<Region> owned = partial[region.sizeClass];
+        if(wasFull)
+            owned.addFirst(region);
+        
+        // hand completely free regions to other size classes, but keep one around so we don't re-carve constantly
+        if(region.isEmpty() && owned.size() > 1){
+            owned.remove(region);
+            freeRegions.push(region);
+            trim();
+        }
+    }
+    
+    /**
+     * Changes how many bytes the slots may add up to. Lowering it lets go of free regions beyond the new budget (but
+     * the spare) right away; the others have to be {@link #drain(TieredCache) drained}.
+     */
+    public synchronized void setBudget(long budget){
+        maxRegions = regionsFor(budget);
+        trim();
+        if(!isOverBudget())
+            undrain();
+    }
+    
+    /**
+     * Empties out the regions the arena is over its budget by, so that they're let go of as soon as their last slot
+     * comes back. Called again while still over budget, it catches blocks put into those regions since, i.e ones
+     * that were being loaded.
+     *
+     * @param cache Cache holding this arena's slots, whose blocks in the drained regions are evicted
+     * @return whether the arena is still over budget, i.e because some of the evicted blocks are being read
+     */
+    public <K> boolean drain(@NotNull TieredCache<K, SlabSlot> cache){
+        Set<Region> draining = pickDraining();
+        if(draining.isEmpty())
+            return false;
+        
+        // gathered first, since invalidating releases slots, which needs the arena while the cache is held
+        List<K> victims = new ArrayList<>();
+        cache.forEachEntry(entry -> {
+            if(draining.contains(entry.getValue().getRegion()))
+                victims.add(entry.getKey());
+        });
+        for(K key : victims)
+            cache.invalidate(key);
+        return isOverBudget();
+    }
+    
+    /**
+     * @return whether the arena holds more regions than its budget allows, not counting the spare
+     */
+    public synchronized boolean isOverBudget(){
+        return regions.size() - Math.min(freeRegions.size(), SPARE_REGIONS) > maxRegions;
+    }
+    
+    /**
+     * @return the number of bytes currently handed out in slots
+     */
+    public synchronized long getUsedBytes(){
+        return usedBytes;
+    }
+    
+    /**
+     * @return the number of bytes of native memory reserved for regions
+     */
+    public synchronized long getReservedBytes(){
+        return (long)regions.size() * regionSize;
+    }
+    
+    @Override
+    public synchronized String toString(){
+        return "SlabArena{used=" + usedBytes +
+               ", reserved=" + getReservedBytes() +
+               ", regions=" + regions.size() + "/" + maxRegions + "}";
+    }
+    
+    private void trim(){
+        while(regions.size() > maxRegions && freeRegions.size() > SPARE_REGIONS){
+            Region region = freeRegions.pop();
+            regions.remove(region);
+            region.free();
+        }
+    }
+    
+    /**
+     * Stops handing out slots from as many regions as the arena is over its budget by, picking the ones with the
+     * fewest slots in use, so that emptying them evicts as little as possible.
+     *
+     * @return the regions to empty out
+     */
+    @NotNull
+    private synchronized Set<Region> pickDraining(){
+        // start over, since the budget may have changed since the last pick
+        undrain();
+        for(ArrayDeque<Region> owned : partial){
+            // a size class's last region is kept for it to avoid re-carving, unless that's over budget
+            for(Region region : owned.toArray(new Region[0])){
+                if(region.isEmpty() && regions.size() - freeRegions.size() > maxRegions){
+                    owned.remove(region);
+                    freeRegions.push(region);
+                }
+            }
+        }
+        trim();
+        
+        int excess = regions.size() - Math.min(freeRegions.size(), SPARE_REGIONS) - maxRegions;
+        if(excess <= 0)
+            return Collections.emptySet();
+        
+        List<Region> used = new ArrayList<>();
+        for(Region region : regions){
+            if(!region.isEmpty())
+                used.add(region);
+        }
+        used.sort(Comparator.comparingInt(Region::getUsed));
+        Set<Region> draining = new HashSet<>(used.subList(0, Math.min(excess, used.size())));
+        for(Region region : draining){
+            region.draining = true;
+            partial[region.sizeClass].remove(region);
+        }
+        return draining;
+    }
+    
+    private void undrain(){
+        for(Region region : regions){
+            if(region.draining){
+                region.draining = false;
+                if(!region.isFull())
+                    partial[region.sizeClass].addFirst(region);
+            }
+        }
+    }
+    
+    private int regionsFor(long budget){
+        // budget worth of regions, plus slack for the one partially used region each size class may hold on to
+        return (int)Math.min(Integer.MAX_VALUE, (budget + regionSize - 1) / regionSize + classes);
+    }
+    
+    @Nullable
+    private Region takeRegion(){
+        Region region = freeRegions.poll();
+        if(region != null || regions.size() >= maxRegions)
+            return region;
+        
+        // outside of the direct memory limit, so that it can be freed as soon as the region is let go of
+        long address = MEMORY.allocateMemory(regionSize, false);
+        if(address == 0){
+            // out of memory; behave as if we'd hit the budget
+            return null;
+        }
+        
+        region = new Region(address, MEMORY.newDirectByteBuffer(address, regionSize),
+                Pointer.wrap(runtime, address, regionSize));
+        regions.add(region);
+        return region;
+    }
+    
+    private static int shiftFor(int size){
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+    
+    final class Region {
+        
+        private final long address;
+        private final ByteBuffer memory;
+        private final Pointer pointer;
+        
+        private int sizeClass = -1;
+        private SlabSlot[] free;
+        private int freeCount;
+        // being emptied out to get back within the budget; no slots are handed out from it meanwhile
+        private boolean draining;
+        
+        Region(long address, ByteBuffer memory, Pointer pointer){
+            this.address = address;
+            this.memory = memory;
+            this.pointer = pointer;
+        }
+        
+        SlabArena getArena(){
+            return SlabArena.this;
+        }
+        
+        void carve(int sizeClass, int slotSize){
+            if(this.sizeClass == sizeClass)
+                return;
+            
+            int count = regionSize / slotSize;
+            this.sizeClass = sizeClass;
+            this.free = new SlabSlot[count];
+            for(int i = 0; i < count; i++){
+                int offset = i * slotSize;
+                ByteBuffer view = memory.duplicate();
+                view.position(offset);
+                view.limit(offset + slotSize);
+                free[i] = new SlabSlot(this, view.slice(), pointer.slice(offset, slotSize));
+            }
+            this.freeCount = count;
+        }
+        
+        SlabSlot pop(){
+            return free[--freeCount];
+        }
+        
+        void push(SlabSlot slot){
+            free[freeCount++] = slot;
+        }
+        
+        boolean isFull(){
+            return freeCount == 0;
+        }
+        
+        boolean isEmpty(){
+            return freeCount == free.length;
+        }
+        
+        int getUsed(){
+            return free.length - freeCount;
+        }
+        
+        /**
+         * Gives the region's memory back. None of its slots may be touched afterwards, which they aren't once they've
+         * all been released.
+         */
+        void free(){
+            MEMORY.freeMemory(address);
+        }
+        
+    }
+    
+}
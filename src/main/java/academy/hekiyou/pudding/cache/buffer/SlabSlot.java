@@ -0,0 +1,53 @@
+package academy.hekiyou.pudding.cache.buffer;
+
+import jnr.ffi.Pointer;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size piece of a {@link SlabArena} region. Slots are reused, so neither the buffer nor the pointer may be
+ * touched after {@link #release()}.
+ */
+public final class SlabSlot {
+    
+    private final SlabArena.Region region;
+    private final ByteBuffer buffer;
+    private final Pointer pointer;
+    
+    SlabSlot(@NotNull SlabArena.Region region, @NotNull ByteBuffer buffer, @NotNull Pointer pointer){
+        this.region = region;
+        this.buffer = buffer;
+        this.pointer = pointer;
+    }
+    
+    /**
+     * @return the slot's memory, cleared so the whole slot is writable
+     */
+    @NotNull
+    public ByteBuffer getBuffer(){
+        buffer.clear();
+        return buffer;
+    }
+    
+    @NotNull
+    public Pointer getPointer(){
+        return pointer;
+    }
+    
+    public int getCapacity(){
+        return buffer.capacity();
+    }
+    
+    /**
+     * Returns the slot to its arena's free list.
+     */
+    public void release(){
+        region.getArena().release(this);
+    }
+    
+    SlabArena.Region getRegion(){
+        return region;
+    }
+    
+}
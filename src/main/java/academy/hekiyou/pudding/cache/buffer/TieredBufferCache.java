@@ -1,32 +1,242 @@
 package academy.hekiyou.pudding.cache.buffer;
 
 import academy.hekiyou.pudding.cache.CacheEntry;
-import academy.hekiyou.pudding.cache.TieredCache;
-import academy.hekiyou.pudding.fs.PuddingFile;
-import jnr.ffi.Pointer;
-import jnr.ffi.Runtime;
+import academy.hekiyou.pudding.cache.CacheTier;
+import academy.hekiyou.pudding.cache.CacheLoader;
+import academy.hekiyou.pudding.cache.ConcurrentTieredCache;
+import academy.hekiyou.pudding.cache.EvictionPolicy;
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
+import academy.hekiyou.pudding.cache.TieredPolicy;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.function.LongFunction;
 
-public class TieredBufferCache extends TieredCache<PuddingFile, ByteBuffer> {
+/**
+ * Caches file blocks in slots of a {@link SlabArena} sized to the cache's capacity.
+ */
+public class TieredBufferCache extends ConcurrentTieredCache<BlockKey, SlabSlot> {
     
-    public TieredBufferCache(int capacity){
-        super(capacity);
+    // smallest slot handed out; tails of blocks and tiny files are rounded up to this
+    static final int MIN_SLOT_SIZE = 512;
+    // most blocks evicted to make room for one; past that the arena is too fragmented for its size class, and the
+    // block isn't cached rather than the cache being emptied for it
+    static final int MAX_ALLOCATE_EVICTIONS = 16;
+    
+    private final SlabArena arena;
+    @Nullable
+    private final CompressedBlockStore compressed;
+    // size of the compressed store relative to the cache, kept when either is resized
+    private final double compressedShare;
+    
+    /**
+     * @param capacity  Maximum number of bytes the cached blocks may occupy
+     * @param blockSize Largest block that will be cached
+     */
+    public TieredBufferCache(long capacity, int blockSize){
+        this(capacity, blockSize, cap -> new TieredPolicy<>(cap, FrequencyBucketList::new));
+    }
+    
+    /**
+     * @param capacity      Maximum number of bytes the cached blocks may occupy
+     * @param blockSize     Largest block that will be cached
+     * @param policyFactory Creates the eviction policy, given the capacity
+     */
+    public TieredBufferCache(long capacity, int blockSize,
+                             @NotNull LongFunction<EvictionPolicy<BlockKey, SlabSlot>> policyFactory){
+        this(capacity, blockSize, policyFactory, 0);
+    }
+    
+    /**
+     * @param capacity           Maximum number of bytes the cached blocks may occupy
+     * @param blockSize          Largest block that will be cached
+     * @param policyFactory      Creates the eviction policy, given the capacity
+     * @param compressedCapacity Bytes on top of capacity for a {@link CompressedBlockStore} to keep evicted blocks in,
+     *                           or 0 to do without one
+     */
+    public TieredBufferCache(long capacity, int blockSize,
+                             @NotNull LongFunction<EvictionPolicy<BlockKey, SlabSlot>> policyFactory,
+                             long compressedCapacity){
+        super(capacity, policyFactory);
+        this.arena = new SlabArena(capacity, Math.min(MIN_SLOT_SIZE, blockSize), blockSize);
+        this.compressed = compressedCapacity > 0 ? new CompressedBlockStore(compressedCapacity, blockSize) : null;
+        this.compressedShare = (double) compressedCapacity / capacity;
     }
     
     @Override
-    public @NotNull CacheEntry<PuddingFile, ByteBuffer> makeEntry(PuddingFile key, ByteBuffer value){
+    protected long weigh(@NotNull BlockKey key, @NotNull SlabSlot value){
+        return value.getCapacity();
+    }
+    
+    @Override
+    public @NotNull CacheEntry<BlockKey, SlabSlot> makeEntry(BlockKey key, SlabSlot value){
         return new CachedBufferEntry(key, value);
     }
     
-    public Pointer getPointerFor(PuddingFile file){
-        CacheEntry<PuddingFile, ByteBuffer> entry = getEntry(file);
-        if(entry == null){
+    /**
+     * Reserves a slot to load a block into, evicting up to {@link #MAX_ALLOCATE_EVICTIONS} cached blocks if the
+     * arena has run dry. The slot must either be {@link #put(Object, Object)} into this cache or released.
+     *
+     * @return a slot of at least length bytes, or null if none could be freed up
+     */
+    @Nullable
+    public SlabSlot allocate(int length){
+        SlabSlot slot = arena.allocate(length);
+        for(int i = 0; slot == null && i < MAX_ALLOCATE_EVICTIONS && evictNext(); i++)
+            slot = arena.allocate(length);
+        return slot;
+    }
+    
+    /**
+     * Fills dst (from its position up to its limit) with a block from the compressed store, if it's there. The block
+     * leaves the store, as it's expected to be {@link #put(Object, Object) put} back into this cache.
+     *
+     * @return false if the block has to be read from disk
+     */
+    public boolean restore(@NotNull BlockKey block, @NotNull ByteBuffer dst){
+        return compressed != null && compressed.take(block, dst);
+    }
+    
+    /**
+     * Like {@link #restore(BlockKey, ByteBuffer)}, but leaves the block in the compressed store, i.e to serve a read
+     * from without waiting to make room for the block in this cache.
+     */
+    public boolean decompress(@NotNull BlockKey block, @NotNull ByteBuffer dst){
+        return compressed != null && compressed.copy(block, dst);
+    }
+    
+    /**
+     * @return whether the compressed store holds a block
+     */
+    public boolean isCompressed(@NotNull BlockKey block){
+        return compressed != null && compressed.contains(block);
+    }
+    
+    /**
+     * Looks up a cached block, counting it as a hit. The entry has to be {@link CachedBufferEntry#pin() pinned}
+     * before its memory is read. It may be held on to and pinned again for later reads until it retires, as long as
+     * every further read is reported through {@link #recordHit(CachedBufferEntry)}.
+     */
+    @Nullable
+    public CachedBufferEntry getEntryFor(@NotNull BlockKey block){
+        return (CachedBufferEntry) lookup(block, true);
+    }
+    
+    /**
+     * Bumps the frequency of a cached block without counting a hit or miss, i.e when it's about to be read rather
+     * than being read.
+     *
+     * @return false if the block isn't cached
+     */
+    public boolean touch(@NotNull BlockKey block){
+        return lookup(block, false) != null;
+    }
+    
+    /**
+     * Loads a block through {@link #computeIfAbsent(Object, CacheLoader)} and pins its entry for the caller, who
+     * must unpin it when done.
+     *
+     * @return the pinned entry, or null if the block couldn't be cached or was evicted again before it could be pinned
+     */
+    @Nullable
+    public CachedBufferEntry loadPinned(@NotNull BlockKey block,
+                                        @NotNull CacheLoader<BlockKey, SlabSlot> loader) throws IOException {
+        if(computeIfAbsent(block, loader) == null)
             return null;
-        } else {
-            return ((CachedBufferEntry)entry).getPointer();
+        
+        CacheEntry<BlockKey, SlabSlot> entry = getEntry(block);
+        return entry != null && entry.pin() ? (CachedBufferEntry) entry : null;
+    }
+    
+    /**
+     * @return the tier a cached block is in, without counting a hit, or null if it isn't cached. Read without the
+     *         lock, so it may lag behind a promotion or demotion that's just happened.
+     */
+    @Nullable
+    public CacheTier getTier(@NotNull BlockKey block){
+        CacheEntry<BlockKey, SlabSlot> entry = getEntry(block);
+        return entry == null ? null : entry.getTier();
+    }
+    
+    /**
+     * Records a hit on a block that was read through an entry held on to since an earlier lookup.
+     */
+    public void recordHit(@NotNull CachedBufferEntry entry){
+        hit(entry, true);
+    }
+    
+    /**
+     * Copies the first length bytes of a cached block into dst without taking any lock.
+     *
+     * @return false if the block wasn't cached
+     */
+    public boolean copyBlock(@NotNull BlockKey block, @NotNull byte[] dst, int length){
+        CacheEntry<BlockKey, SlabSlot> entry = getEntry(block);
+        if(entry == null || !entry.pin())
+            return false;
+        
+        try {
+            entry.getValue().getPointer().get(0, dst, 0, length);
+            return true;
+        } finally {
+            entry.unpin();
         }
     }
     
+    @Override
+    public boolean invalidate(@NotNull BlockKey key){
+        boolean cached = super.invalidate(key);
+        return compressed != null && compressed.invalidate(key) || cached;
+    }
+    
+    /**
+     * {@inheritDoc} The arena and the compressed store follow along, keeping their share; lowering it evicts whatever
+     * else it takes to let go of the regions the arena is now over its budget by.
+     */
+    @Override
+    public void setCapacity(long capacity){
+        super.setCapacity(capacity);
+        arena.setBudget(capacity);
+        arena.drain(this);
+        if(compressed != null)
+            compressed.setCapacity(Math.max(1, (long) (capacity * compressedShare)));
+    }
+    
+    @Override
+    public boolean releaseMemory(){
+        boolean held = arena.drain(this);
+        return compressed != null && compressed.releaseMemory() || held;
+    }
+    
+    /**
+     * @return the number of bytes of memory reserved for cached blocks, not counting the compressed store
+     */
+    public long getReservedBytes(){
+        return arena.getReservedBytes();
+    }
+    
+    @Override
+    public void clear(){
+        super.clear();
+        if(compressed != null)
+            compressed.clear();
+    }
+    
+    @Override
+    public void printStats(){
+        super.printStats();
+        System.out.println(arena);
+        if(compressed != null)
+            compressed.printStats();
+    }
+    
+    @Override
+    protected void evicted(@NotNull CacheEntry<BlockKey, SlabSlot> victim){
+        // the store takes a copy to compress in the background, so the slot is free as soon as the victim retires
+        if(compressed != null)
+            compressed.offer(victim.getKey(), victim.getValue());
+    }
+    
 }
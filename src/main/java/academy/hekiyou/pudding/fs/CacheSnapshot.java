@@ -0,0 +1,186 @@
+package academy.hekiyou.pudding.fs;
+
+import academy.hekiyou.pudding.cache.CacheTier;
+import academy.hekiyou.pudding.cache.buffer.BlockKey;
+import academy.hekiyou.pudding.cache.buffer.TieredBufferCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Saves the hot set of the block cache to disk and loads it back on startup, so a restart doesn't start cold.
+ *
+ * A snapshot is a header (magic, version, block size, whether data is included, entry count) followed by one record
+ * per cached block: file name, block index, frequency, tier, the file's size and modification time, and optionally
+ * the block's contents (length -1 if they weren't captured). Records are written hottest first so that restoring
+ * them in order brings back the most valuable blocks before anything else.
+ */
+final class CacheSnapshot {
+    
+    private static final int MAGIC = 0x50554453; // "PUDS"
+    private static final int VERSION = 1;
+    
+    private CacheSnapshot(){}
+    
+    /**
+     * Writes the current contents of the cache to target, replacing it atomically.
+     *
+     * @param includeData Whether to store block contents as well; makes the snapshot as large as the hot set but
+     *                    lets it be restored without touching the backing files
+     * @return number of blocks written
+     */
+    static int write(@NotNull Path target, boolean includeData) throws IOException {
+        TieredBufferCache cache = PuddingFile.getCache();
+        
+        // only gather metadata while holding the cache; contents are copied afterwards
+        List<Entry> entries = new ArrayList<>();
+        cache.forEachEntry(entry -> entries.add(new Entry(entry.getKey(), entry.getFreq(), entry.getTier())));
+        entries.sort(Comparator.comparingInt((Entry entry) -> entry.tier.ordinal())
+                .thenComparing(entry -> entry.freq, Comparator.reverseOrder()));
+        
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(PuddingFile.getBlockSize());
+            out.writeBoolean(includeData);
+            out.writeInt(entries.size());
+            
+            byte[] data = includeData ? new byte[PuddingFile.getBlockSize()] : null;
+            for(Entry entry : entries){
+                // the size and modification time the cached contents were read under, not whatever's on disk now
+                PuddingFile file = entry.key.getFile();
+                out.writeUTF(file.getName());
+                out.writeLong(entry.key.getIndex());
+                out.writeInt(entry.freq);
+                out.writeByte(entry.tier.ordinal());
+                out.writeLong(file.getSize());
+                out.writeLong(file.getModified());
+                if(includeData){
+                    int length = file.getBlockLength(entry.key.getIndex());
+                    if(cache.copyBlock(entry.key, data, length)){
+                        out.writeInt(length);
+                        out.write(data, 0, length);
+                    } else {
+                        // evicted since we looked; it'll be read from disk on restore instead
+                        out.writeInt(-1);
+                    }
+                }
+            }
+        }
+        
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+    
+    /**
+     * Loads blocks listed in a snapshot into the cache, hottest first, until the snapshot is exhausted or the cache is
+     * full. Blocks of files that changed since the snapshot was taken are re-read from disk.
+     *
+     * @param lookup  Resolves a file name to the file it refers to, or null if it no longer exists
+     * @param threads Number of blocks to load in parallel
+     * @return number of blocks restored
+     */
+    static long restore(@NotNull Path source, @NotNull Function<String, PuddingFile> lookup, int threads)
+            throws IOException, InterruptedException {
+        TieredBufferCache cache = PuddingFile.getCache();
+        AtomicLong restored = new AtomicLong(), bytes = new AtomicLong();
+        long start = System.nanoTime();
+        
+        // bounded so that data from the snapshot doesn't pile up on the heap faster than it can be loaded,
+        // and so that blocks are still loaded roughly in the order they were written
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source)))){
+            if(in.readInt() != MAGIC)
+                throw new IOException(source + " isn't a cache snapshot");
+            if(in.readInt() != VERSION)
+                throw new IOException(source + " was written by an incompatible version");
+            
+            int blockSize = in.readInt();
+            if(blockSize != PuddingFile.getBlockSize()){
+                System.out.println("Ignoring snapshot " + source + " taken with a block size of " + blockSize);
+                return 0;
+            }
+            
+            boolean hasData = in.readBoolean();
+            int count = in.readInt();
+            Map<String, Boolean> unchanged = new HashMap<>();
+            for(int i = 0; i < count && cache.getWeight() < cache.getCapacity(); i++){
+                String name = in.readUTF();
+                long index = in.readLong();
+                int freq = in.readInt();
+                byte tier = in.readByte();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                byte[] data = null;
+                if(hasData){
+                    int length = in.readInt();
+                    if(length >= 0){
+                        data = new byte[length];
+                        in.readFully(data);
+                    }
+                }
+                
+                if(tier < 0 || tier >= CacheTier.values().length)
+                    throw new IOException(source + " is corrupt");
+                
+                PuddingFile file = lookup.apply(name);
+                if(file == null)
+                    continue;
+                
+                Boolean fresh = unchanged.get(name);
+                if(fresh == null){
+                    fresh = file.getSize() == size &&
+                            Files.getLastModifiedTime(file.getPath()).toMillis() == mtime;
+                    unchanged.put(name, fresh);
+                }
+                
+                byte[] contents = fresh ? data : null;
+                executor.execute(() -> {
+                    try {
+                        if(file.warm(index, freq, contents)){
+                            restored.incrementAndGet();
+                            bytes.addAndGet(file.getBlockLength(index));
+                        }
+                    } catch(IOException exc){
+                        System.out.println("Failed to restore " + file + "#" + index + ": " + exc);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        
+        System.out.printf("Restored %d blocks (%d bytes) from %s in %d ms\n", restored.get(), bytes.get(), source,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return restored.get();
+    }
+    
+    private static class Entry {
+        
+        @NotNull
+        final BlockKey key;
+        final int freq;
+        @NotNull
+        final CacheTier tier;
+        
+        Entry(@NotNull BlockKey key, int freq, @NotNull CacheTier tier){
+            this.key = key;
+            this.freq = freq;
+            this.tier = tier;
+        }
+        
+    }
+    
+}
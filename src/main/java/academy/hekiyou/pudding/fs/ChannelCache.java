@@ -0,0 +1,166 @@
+package academy.hekiyou.pudding.fs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the backing files open between loads, up to a fixed number of them, closing the least recently used ones.
+ *
+ * Channels are handed out as {@link Lease}s. A channel that's pushed out while leased is closed when its last lease
+ * is returned, so the number of open files never exceeds the limit by more than the number of loads in flight. Only
+ * positional reads may be made through a channel, since it's shared between threads.
+ *
+ * Channels are kept per {@link PuddingFile} rather than per path, so a file whose contents were replaced (and so got a
+ * new PuddingFile) never reads through a channel to the old contents.
+ */
+final class ChannelCache {
+    
+    private final int capacity;
+    // in access order, least recently used first
+    private final LinkedHashMap<PuddingFile, Lease> channels = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /**
+     * @param capacity Number of files to keep open
+     */
+    ChannelCache(int capacity){
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+    }
+    
+    /**
+     * @return a lease on a channel to file, which must be {@link Lease#close() closed} once the read is done
+     */
+    @NotNull
+    Lease acquire(@NotNull PuddingFile file) throws IOException {
+        synchronized(this){
+            Lease lease = channels.get(file);
+            if(lease != null){
+                lease.leases++;
+                return lease;
+            }
+        }
+        
+        // opening may block on a slow disk, so don't hold up other files meanwhile
+        FileChannel channel = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+        Lease lease = new Lease(channel);
+        Lease raced;
+        synchronized(this){
+            if(file.isStale()){
+                // read by handles opened before the change; not worth holding a file open for
+                lease.leases++;
+                lease.evict();
+                return lease;
+            }
+            raced = channels.get(file);
+            if(raced != null){
+                raced.leases++;
+            } else {
+                lease.leases++;
+                channels.put(file, lease);
+                trim();
+            }
+        }
+        if(raced != null){
+            channel.close();
+            return raced;
+        }
+        return lease;
+    }
+    
+    /**
+     * Closes file's channel once nobody's using it anymore, i.e because the file has changed.
+     */
+    void invalidate(@NotNull PuddingFile file){
+        Lease lease;
+        synchronized(this){
+            lease = channels.remove(file);
+            if(lease == null || !lease.evict())
+                return;
+        }
+        lease.closeChannel();
+    }
+    
+    /**
+     * Closes every channel once nobody's using it anymore.
+     */
+    void clear(){
+        synchronized(this){
+            for(Iterator<Lease> it = channels.values().iterator(); it.hasNext(); ){
+                Lease lease = it.next();
+                it.remove();
+                if(lease.evict())
+                    lease.closeChannel();
+            }
+        }
+    }
+    
+    synchronized int size(){
+        return channels.size();
+    }
+    
+    private void trim(){
+        for(Iterator<Map.Entry<PuddingFile, Lease>> it = channels.entrySet().iterator();
+            channels.size() > capacity && it.hasNext(); ){
+            Lease lease = it.next().getValue();
+            it.remove();
+            if(lease.evict())
+                lease.closeChannel();
+        }
+    }
+    
+    final class Lease implements AutoCloseable {
+        
+        private final FileChannel channel;
+        // guarded by the cache
+        private int leases = 0;
+        private boolean evicted = false;
+        
+        private Lease(@NotNull FileChannel channel){
+            this.channel = channel;
+        }
+        
+        @NotNull
+        FileChannel getChannel(){
+            return channel;
+        }
+        
+        /**
+         * Returns the lease, closing the channel if it's been pushed out of the cache in the meantime.
+         */
+        @Override
+        public void close(){
+            synchronized(ChannelCache.this){
+                if(--leases > 0 || !evicted)
+                    return;
+            }
+            closeChannel();
+        }
+        
+        /**
+         * Marks the channel as out of the cache.
+         *
+         * @return whether it's unused, and so should be closed right away
+         */
+        private boolean evict(){
+            evicted = true;
+            return leases == 0;
+        }
+        
+        private void closeChannel(){
+            try {
+                channel.close();
+            } catch(IOException exc){
+                System.out.println("Failed to close a backing file: " + exc);
+            }
+        }
+        
+    }
+    
+}
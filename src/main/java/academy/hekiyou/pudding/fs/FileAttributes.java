@@ -0,0 +1,80 @@
+package academy.hekiyou.pudding.fs;
+
+import org.jetbrains.annotations.NotNull;
+import ru.serce.jnrfuse.struct.FileStat;
+import ru.serce.jnrfuse.struct.Timespec;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What getattr reports for a file or directory, taken from the backing file and kept until it's refreshed.
+ */
+final class FileAttributes {
+    
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    private final long inode;
+    private final int mode;
+    private final long size;
+    // nanoseconds since the epoch
+    private final long accessed;
+    private final long modified;
+    // System.nanoTime() when these were read
+    private final long checked;
+    
+    FileAttributes(long inode, @NotNull BasicFileAttributes attrs){
+        this.inode = inode;
+        this.mode = attrs.isDirectory() ? FileStat.S_IFDIR | 0744 : FileStat.S_IFREG | 0744;
+        this.size = attrs.isDirectory() ? 0 : attrs.size();
+        this.accessed = attrs.lastAccessTime().to(TimeUnit.NANOSECONDS);
+        this.modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        this.checked = System.nanoTime();
+    }
+    
+    long getInode(){
+        return inode;
+    }
+    
+    long getSize(){
+        return size;
+    }
+    
+    long getModified(){
+        return modified;
+    }
+    
+    /**
+     * @return whether these were read more than maxAge nanoseconds ago
+     */
+    boolean isOlderThan(long maxAge){
+        return System.nanoTime() - checked > maxAge;
+    }
+    
+    /**
+     * @return whether other describes the same contents, going by size and modification time
+     */
+    boolean sameContents(@NotNull FileAttributes other){
+        return size == other.size && modified == other.modified;
+    }
+    
+    boolean sameContents(@NotNull BasicFileAttributes attrs){
+        return size == attrs.size() && modified == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+    
+    void fill(@NotNull FileStat stat){
+        stat.st_mode.set(mode);
+        stat.st_ino.set(inode);
+        stat.st_size.set(size);
+        setTime(stat.st_atim, accessed);
+        setTime(stat.st_mtim, modified);
+        // nothing here changes a file without also modifying it
+        setTime(stat.st_ctim, modified);
+    }
+    
+    private static void setTime(@NotNull Timespec time, long nanos){
+        time.tv_sec.set(Math.floorDiv(nanos, NANOS_PER_SECOND));
+        time.tv_nsec.set(Math.floorMod(nanos, NANOS_PER_SECOND));
+    }
+    
+}
@@ -0,0 +1,45 @@
+package academy.hekiyou.pudding.fs;
+
+import academy.hekiyou.pudding.cache.buffer.CachedBufferEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * State kept for each time a file is opened, handed to FUSE through {@code fi.fh} by a {@link HandleTable}.
+ */
+final class FileHandle {
+    
+    private final PuddingFile file;
+    // where the last read through this handle ended, to spot sequential readers
+    private volatile long lastReadEnd = -1;
+    // entry of the block last read through this handle, which the next read most likely lands in again
+    @Nullable
+    private volatile CachedBufferEntry current;
+    
+    FileHandle(@NotNull PuddingFile file){
+        this.file = file;
+    }
+    
+    @NotNull
+    PuddingFile getFile(){
+        return file;
+    }
+    
+    long getLastReadEnd(){
+        return lastReadEnd;
+    }
+    
+    void setLastReadEnd(long lastReadEnd){
+        this.lastReadEnd = lastReadEnd;
+    }
+    
+    @Nullable
+    CachedBufferEntry getCurrent(){
+        return current;
+    }
+    
+    void setCurrent(@Nullable CachedBufferEntry current){
+        this.current = current;
+    }
+    
+}
@@ -0,0 +1,126 @@
+package academy.hekiyou.pudding.fs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of the backing tree and reports changes in batches once they've settled down.
+ *
+ * A patcher replacing thousands of files fires events in bursts. Collecting them until no new one has come in for the
+ * debounce time (but for no longer than the max delay after the first) turns each burst into a single batch.
+ */
+final class FileWatcher implements Closeable {
+    
+    interface Listener {
+        
+        /**
+         * @param modified     Backing files whose contents may have changed
+         * @param restructured Whether files or directories were added or removed, or events were lost, in which case
+         *                     the whole tree has to be rescanned
+         */
+        void changed(@NotNull Set<Path> modified, boolean restructured);
+        
+    }
+    
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Listener listener;
+    private final long debounce;
+    private final long maxDelay;
+    private final Thread thread;
+    
+    /**
+     * @param debounce How long no new event has to come in for a batch to be reported, in milliseconds
+     * @param maxDelay Longest a batch is held back while events keep coming in, in milliseconds
+     */
+    FileWatcher(@NotNull Path root, long debounce, long maxDelay, @NotNull Listener listener) throws IOException {
+        this.service = root.getFileSystem().newWatchService();
+        this.listener = listener;
+        this.debounce = TimeUnit.MILLISECONDS.toNanos(debounce);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.thread = new Thread(this::run, "pudding-watch");
+        this.thread.setDaemon(true);
+    }
+    
+    /**
+     * Starts watching a directory (but not its subdirectories). Watching one twice does nothing.
+     */
+    void register(@NotNull Path directory) throws IOException {
+        WatchKey key = directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        directories.put(key, directory);
+    }
+    
+    void start(){
+        thread.start();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        service.close();
+    }
+    
+    private void run(){
+        Set<Path> modified = new HashSet<>();
+        boolean restructured = false;
+        long first = 0, last = 0;
+        try {
+            while(!Thread.currentThread().isInterrupted()){
+                boolean pending = restructured || !modified.isEmpty();
+                WatchKey key;
+                if(pending){
+                    long wait = Math.min(last + debounce, first + maxDelay) - System.nanoTime();
+                    key = wait > 0 ? service.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if(key == null){
+                        report(modified, restructured);
+                        modified = new HashSet<>();
+                        restructured = false;
+                        continue;
+                    }
+                } else {
+                    key = service.take();
+                }
+                
+                Path directory = directories.get(key);
+                for(WatchEvent<?> event : key.pollEvents()){
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && directory != null)
+                        modified.add(directory.resolve((Path) event.context()));
+                    else
+                        restructured = true;
+                }
+                // keys of deleted directories go invalid; the rescan that follows re-registers whatever is left
+                if(!key.reset())
+                    directories.remove(key);
+                
+                last = System.nanoTime();
+                if(!pending)
+                    first = last;
+            }
+        } catch(InterruptedException | ClosedWatchServiceException exc){
+            // closed
+        }
+    }
+    
+    private void report(@NotNull Set<Path> modified, boolean restructured){
+        try {
+            listener.changed(modified, restructured);
+        } catch(RuntimeException exc){
+            System.out.println("Failed to apply changes to the backing directory: " + exc);
+        }
+    }
+    
+}
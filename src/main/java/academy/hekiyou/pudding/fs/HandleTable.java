@@ -0,0 +1,86 @@
+package academy.hekiyou.pudding.fs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Open files by the handle {@link PuddingFS#open} gives out for them, so that reads can find their file in O(1).
+ *
+ * Handles are slot indices plus one, since FUSE leaves {@code fi.fh} at 0 when nothing was set. Released slots are
+ * reused, so the table only grows as far as the most files open at once. Lookups don't lock.
+ */
+final class HandleTable {
+    
+    private static final int INITIAL_SIZE = 64;
+    
+    private final Object lock = new Object();
+    private volatile FileHandle[] handles = new FileHandle[INITIAL_SIZE];
+    // released slots, used up before the table grows
+    private int[] free = new int[INITIAL_SIZE];
+    private int freeCount;
+    // slots ever handed out
+    private int used;
+    private int open;
+    
+    /**
+     * @return the handle to put into {@code fi.fh}
+     */
+    long open(@NotNull PuddingFile file){
+        synchronized(lock){
+            int index;
+            if(freeCount > 0){
+                index = free[--freeCount];
+            } else {
+                index = used++;
+                if(index == handles.length)
+                    handles = Arrays.copyOf(handles, index * 2);
+            }
+            FileHandle[] current = handles;
+            current[index] = new FileHandle(file);
+            // the volatile write publishes the slot to readers, who go through the same field
+            handles = current;
+            open++;
+            return index + 1L;
+        }
+    }
+    
+    /**
+     * @return the open file behind handle, or null if it isn't one this table gave out (or it's been released)
+     */
+    @Nullable
+    FileHandle get(long handle){
+        FileHandle[] current = handles;
+        if(handle <= 0 || handle > current.length)
+            return null;
+        return current[(int) handle - 1];
+    }
+    
+    /**
+     * @return false if handle wasn't open
+     */
+    boolean release(long handle){
+        synchronized(lock){
+            FileHandle[] current = handles;
+            if(handle <= 0 || handle > current.length || current[(int) handle - 1] == null)
+                return false;
+            
+            int index = (int) handle - 1;
+            current[index] = null;
+            handles = current;
+            if(freeCount == free.length)
+                free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = index;
+            open--;
+            return true;
+        }
+    }
+    
+    int size(){
+        synchronized(lock){
+            return open;
+        }
+    }
+    
+}
@@ -0,0 +1,425 @@
+package academy.hekiyou.pudding.fs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every directory and file under the backing directory, flattened into arrays so that looking a path up is a binary
+ * search per path component and allocates nothing.
+ *
+ * Nodes are numbered breadth-first, which keeps the children of each directory next to each other and sorted by name;
+ * a directory only records where its children start and how many there are. The root is node {@link #ROOT}.
+ *
+ * Each node's attributes are kept alongside it so getattr never has to touch the disk. Their inode numbers outlive
+ * the node numbers: a rebuild keeps the inode of every path still there as the same kind of node, and gives new
+ * paths numbers never handed out before, so they're stable for the life of the mount.
+ *
+ * The shape of the tree is fixed; when files are added or removed, a new index is {@link #build(Path, PathIndex) built}
+ * that carries over the unchanged files of the old one. Files whose contents change in place are swapped out by
+ * {@link #refresh(int)}.
+ */
+final class PathIndex {
+    
+    static final int ROOT = 0;
+    static final int MISSING = -1;
+    
+    private final Path root;
+    // last path component of each node, interned since the same names recur all over a tree
+    private final String[] names;
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] childCount;
+    // null for directories
+    private final AtomicReferenceArray<PuddingFile> files;
+    private final AtomicReferenceArray<FileAttributes> attributes;
+    // lowest inode number not handed out yet, where a rebuild numbers new paths from
+    private final long nextInode;
+    
+    private PathIndex(@NotNull Path root, @NotNull String[] names, @NotNull int[] parent, @NotNull int[] firstChild,
+                      @NotNull int[] childCount, @NotNull AtomicReferenceArray<PuddingFile> files,
+                      @NotNull AtomicReferenceArray<FileAttributes> attributes, long nextInode){
+        this.root = root;
+        this.names = names;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.childCount = childCount;
+        this.files = files;
+        this.attributes = attributes;
+        this.nextInode = nextInode;
+    }
+    
+    /**
+     * Walks the tree under root, listing directories in parallel.
+     */
+    @NotNull
+    static PathIndex build(@NotNull Path root) throws IOException {
+        return build(root, null);
+    }
+    
+    /**
+     * Walks the tree under root, listing directories in parallel.
+     *
+     * @param previous An index of the same tree to take the files whose size and modification time haven't changed
+     *                 from, so that their cached blocks stay valid, and the inode numbers of paths still there; or
+     *                 null
+     */
+    @NotNull
+    static PathIndex build(@NotNull Path root, @Nullable PathIndex previous) throws IOException {
+        Node tree;
+        try {
+            BasicFileAttributes rootAttrs = Files.readAttributes(root, BasicFileAttributes.class);
+            tree = ForkJoinPool.commonPool().invoke(new Scan(root, "", "", rootAttrs, previous));
+        } catch(UncheckedIOException exc){
+            throw exc.getCause();
+        }
+        
+        List<Node> order = new ArrayList<>();
+        order.add(tree);
+        for(int i = 0; i < order.size(); i++)
+            order.addAll(order.get(i).children);
+        
+        int size = order.size();
+        String[] names = new String[size];
+        int[] parent = new int[size];
+        int[] firstChild = new int[size];
+        int[] childCount = new int[size];
+        AtomicReferenceArray<PuddingFile> files = new AtomicReferenceArray<>(size);
+        AtomicReferenceArray<FileAttributes> attributes = new AtomicReferenceArray<>(size);
+        parent[ROOT] = MISSING;
+        // 0 isn't a valid inode
+        long nextInode = previous == null ? 1 : previous.nextInode;
+        int next = 1;
+        for(int i = 0; i < size; i++){
+            Node node = order.get(i);
+            names[i] = node.name.intern();
+            files.set(i, node.file);
+            attributes.set(i, new FileAttributes(node.inode != 0 ? node.inode : nextInode++, node.attrs));
+            firstChild[i] = next;
+            childCount[i] = node.children.size();
+            for(int child = next; child < next + childCount[i]; child++)
+                parent[child] = i;
+            next += childCount[i];
+        }
+        return new PathIndex(root, names, parent, firstChild, childCount, files, attributes, nextInode);
+    }
+    
+    /**
+     * @param path A path relative to the root, with or without leading, trailing or doubled slashes
+     * @return the node at path, or {@link #MISSING}
+     */
+    int find(@NotNull String path){
+        int node = ROOT;
+        int length = path.length();
+        int start = 0;
+        while(start < length){
+            if(path.charAt(start) == '/'){
+                start++;
+                continue;
+            }
+            
+            int end = path.indexOf('/', start);
+            if(end < 0)
+                end = length;
+            node = findChild(node, path, start, end);
+            if(node == MISSING)
+                return MISSING;
+            start = end;
+        }
+        return node;
+    }
+    
+    /**
+     * @param path A file or directory under the root
+     * @return the node of path, or {@link #MISSING}
+     */
+    int find(@NotNull Path path){
+        if(!path.startsWith(root))
+            return MISSING;
+        
+        int node = ROOT;
+        for(Path component : root.relativize(path)){
+            String name = component.toString();
+            node = findChild(node, name, 0, name.length());
+            if(node == MISSING)
+                return MISSING;
+        }
+        return node;
+    }
+    
+    @Nullable
+    PuddingFile getFile(@NotNull String path){
+        int node = find(path);
+        return node == MISSING ? null : files.get(node);
+    }
+    
+    @Nullable
+    PuddingFile getFile(int node){
+        return files.get(node);
+    }
+    
+    @NotNull
+    FileAttributes getAttributes(int node){
+        return attributes.get(node);
+    }
+    
+    /**
+     * Reads a node's attributes from the backing file again. If a file's size or modification time has changed, it's
+     * replaced with a fresh {@link PuddingFile} and the old one is {@link PuddingFile#invalidate() invalidated}.
+     *
+     * @return the new attributes
+     */
+    @NotNull
+    synchronized FileAttributes refresh(int node) throws IOException {
+        FileAttributes previous = attributes.get(node);
+        FileAttributes fresh = new FileAttributes(previous.getInode(),
+                Files.readAttributes(getPath(node), BasicFileAttributes.class));
+        attributes.set(node, fresh);
+        
+        PuddingFile file = files.get(node);
+        if(file != null && !fresh.sameContents(previous)){
+            files.set(node, new PuddingFile(file.getPath(), file.getName(), fresh.getSize(),
+                    TimeUnit.NANOSECONDS.toMillis(fresh.getModified())));
+            file.invalidate();
+        }
+        return fresh;
+    }
+    
+    /**
+     * @return the backing file or directory of a node
+     */
+    @NotNull
+    Path getPath(int node){
+        PuddingFile file = files.get(node);
+        if(file != null)
+            return file.getPath();
+        
+        List<String> components = new ArrayList<>();
+        for(int current = node; current != ROOT; current = parent[current])
+            components.add(names[current]);
+        Path path = root;
+        for(int i = components.size() - 1; i >= 0; i--)
+            path = path.resolve(components.get(i));
+        return path;
+    }
+    
+    boolean isDirectory(int node){
+        return files.get(node) == null;
+    }
+    
+    @NotNull
+    String getName(int node){
+        return names[node];
+    }
+    
+    int getChildCount(int node){
+        return childCount[node];
+    }
+    
+    /**
+     * @return the i-th child of a directory, in name order
+     */
+    int getChild(int node, int i){
+        return firstChild[node] + i;
+    }
+    
+    void forEachFile(@NotNull Consumer<PuddingFile> action){
+        for(int i = 0; i < files.length(); i++){
+            PuddingFile file = files.get(i);
+            if(file != null)
+                action.accept(file);
+        }
+    }
+    
+    void forEachDirectory(@NotNull Consumer<Path> action){
+        for(int i = 0; i < files.length(); i++){
+            if(files.get(i) == null)
+                action.accept(getPath(i));
+        }
+    }
+    
+    private int findChild(int node, @NotNull String path, int start, int end){
+        int low = firstChild[node];
+        int high = low + childCount[node] - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = compare(names[mid], path, start, end);
+            if(cmp < 0)
+                low = mid + 1;
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return MISSING;
+    }
+    
+    /**
+     * {@link String#compareTo(String)} of name against path's characters from start to end, without the substring.
+     */
+    private static int compare(@NotNull String name, @NotNull String path, int start, int end){
+        int length = Math.min(name.length(), end - start);
+        for(int i = 0; i < length; i++){
+            int diff = name.charAt(i) - path.charAt(start + i);
+            if(diff != 0)
+                return diff;
+        }
+        return name.length() - (end - start);
+    }
+    
+    private static final class Node {
+        
+        final String name;
+        @Nullable
+        final PuddingFile file;
+        final BasicFileAttributes attrs;
+        // carried over from the previous index, or 0 for a path new to it
+        final long inode;
+        final List<Node> children;
+        
+        Node(@NotNull String name, @Nullable PuddingFile file, @NotNull BasicFileAttributes attrs, long inode,
+             @NotNull List<Node> children){
+            this.name = name;
+            this.file = file;
+            this.attrs = attrs;
+            this.inode = inode;
+            this.children = children;
+        }
+        
+    }
+    
+    /**
+     * Lists a directory, forking off a scan for each subdirectory.
+     */
+    private static final class Scan extends RecursiveTask<Node> {
+        
+        private final Path dir;
+        private final String name;
+        // of dir relative to the root, ending with a slash unless it's the root itself
+        private final String prefix;
+        private final BasicFileAttributes attrs;
+        @Nullable
+        private final PathIndex previous;
+        
+        Scan(@NotNull Path dir, @NotNull String name, @NotNull String prefix, @NotNull BasicFileAttributes attrs,
+             @Nullable PathIndex previous){
+            this.dir = dir;
+            this.name = name;
+            this.prefix = prefix;
+            this.attrs = attrs;
+            this.previous = previous;
+        }
+        
+        /**
+         * @return the directory's node, or null if it's gone
+         */
+        @Override
+        @Nullable
+        protected Node compute(){
+            List<Scan> subdirs = new ArrayList<>();
+            List<Node> children = new ArrayList<>();
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+                for(Path child : stream){
+                    String childName = child.getFileName().toString();
+                    // symlinked directories aren't followed, so that a link cycle can't hang the scan
+                    BasicFileAttributes childAttrs;
+                    boolean link;
+                    try {
+                        childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        link = childAttrs.isSymbolicLink();
+                        if(link)
+                            childAttrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch(FileSystemException exc){
+                        skip(exc);
+                        continue;
+                    }
+                    
+                    if(!link && childAttrs.isDirectory()){
+                        Scan scan = new Scan(child, childName, prefix + childName + "/", childAttrs, previous);
+                        scan.fork();
+                        subdirs.add(scan);
+                        continue;
+                    }
+                    
+                    if(childAttrs.isRegularFile()){
+                        PuddingFile file = reuse(prefix + childName, childAttrs);
+                        if(file == null)
+                            file = new PuddingFile(child, prefix + childName, childAttrs.size(),
+                                    childAttrs.lastModifiedTime().toMillis());
+                        children.add(new Node(childName, file, childAttrs, inodeOf(prefix + childName, false),
+                                Collections.emptyList()));
+                    }
+                }
+            } catch(FileSystemException exc){
+                // the root going missing is worth failing for, a subdirectory removed mid-scan isn't
+                if(prefix.isEmpty())
+                    throw new UncheckedIOException(exc);
+                skip(exc);
+                return null;
+            } catch(IOException exc){
+                throw new UncheckedIOException(exc);
+            }
+            
+            for(Scan scan : subdirs){
+                Node subdir = scan.join();
+                if(subdir != null)
+                    children.add(subdir);
+            }
+            children.sort(Comparator.comparing(node -> node.name));
+            return new Node(name, null, attrs, inodeOf(prefix, true), children);
+        }
+        
+        /**
+         * Leaves out an entry that couldn't be read, rather than failing the whole scan over it. Entries removed since
+         * they were listed and dangling links are common enough (i.e while something is being updated) to go
+         * unmentioned.
+         */
+        private static void skip(@NotNull FileSystemException exc){
+            if(!(exc instanceof NoSuchFileException))
+                System.out.println("Skipping " + exc.getFile() + ": " + exc);
+        }
+        
+        /**
+         * @return the inode number path had in the previous index if it was the same kind of node, otherwise 0
+         */
+        private long inodeOf(@NotNull String path, boolean directory){
+            if(previous == null)
+                return 0;
+            
+            int node = previous.find(path);
+            if(node == MISSING || previous.isDirectory(node) != directory)
+                return 0;
+            return previous.getAttributes(node).getInode();
+        }
+        
+        @Nullable
+        private PuddingFile reuse(@NotNull String path, @NotNull BasicFileAttributes attrs){
+            if(previous == null)
+                return null;
+            
+            int node = previous.find(path);
+            PuddingFile file = node == MISSING ? null : previous.getFile(node);
+            return file != null && previous.getAttributes(node).sameContents(attrs) ? file : null;
+        }
+        
+    }
+    
+}
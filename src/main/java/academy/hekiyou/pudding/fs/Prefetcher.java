@@ -0,0 +1,121 @@
+package academy.hekiyou.pudding.fs;
+
+import academy.hekiyou.pudding.cache.buffer.BlockKey;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+
+/**
+ * Loads blocks into the cache in the background, ahead of reads that are expected to need them.
+ *
+ * At most one load per block is ever queued. Loads go through the cache's single-flight loading, so a reader that
+ * misses on a block that's already being prefetched waits for it rather than reading it a second time. The queue is
+ * bounded and prefetches that don't fit are simply dropped, since they're only a hint. Read-ahead is queued as one
+ * load for the whole run of blocks, so that they're read from the disk together.
+ */
+final class Prefetcher {
+    
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<BlockKey, Load> pending = new ConcurrentHashMap<>();
+    private final int readAhead;
+    
+    /**
+     * @param threads   Number of blocks loaded at once
+     * @param depth     Maximum number of blocks waiting to be loaded
+     * @param readAhead Number of blocks loaded ahead of a sequential reader
+     */
+    Prefetcher(int threads, int depth, int readAhead){
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(depth), runnable -> {
+                    Thread thread = new Thread(runnable, "pudding-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.readAhead = readAhead;
+    }
+    
+    /**
+     * Queues a block to be loaded unless it's cached, already queued, or the queue is full.
+     */
+    void prefetch(@NotNull PuddingFile file, long index){
+        prefetch(file, index, index);
+    }
+    
+    /**
+     * Queues the blocks following index, for a reader that appears to be going through file sequentially.
+     */
+    void readAhead(@NotNull PuddingFile file, long index){
+        prefetch(file, index + 1, index + readAhead);
+    }
+    
+    /**
+     * Queues a single load for the blocks from first to last, trimmed down to those that are neither cached nor
+     * queued at either end.
+     */
+    private void prefetch(@NotNull PuddingFile file, long first, long last){
+        first = Math.max(first, 0);
+        last = Math.min(last, (file.getSize() - 1) / PuddingFile.getBlockSize());
+        while(first <= last && isCovered(file, first))
+            first++;
+        while(last > first && isCovered(file, last))
+            last--;
+        if(first > last)
+            return;
+        
+        Load load = new Load(file, first, last);
+        for(long index = first; index <= last; index++)
+            pending.putIfAbsent(new BlockKey(file, index), load);
+        try {
+            executor.execute(load);
+        } catch(RejectedExecutionException exc){
+            // never runs, so this is what clears it from pending
+            load.cancel(false);
+        }
+    }
+    
+    private boolean isCovered(@NotNull PuddingFile file, long index){
+        BlockKey key = new BlockKey(file, index);
+        return pending.containsKey(key) || PuddingFile.getCache().contains(key);
+    }
+    
+    /**
+     * Called when a block is evicted. A block being pushed out means the cache can't hold everything that's coming
+     * in, so any read-ahead still queued behind it would most likely be evicted before it's read; drop it instead.
+     */
+    void evicted(@NotNull BlockKey key){
+        if(pending.isEmpty())
+            return;
+        
+        for(int i = 1; i <= readAhead; i++){
+            Load load = pending.get(new BlockKey(key.getFile(), key.getIndex() + i));
+            // a load that's already running just finishes
+            if(load != null)
+                load.cancel(false);
+        }
+    }
+    
+    private class Load extends FutureTask<Void> {
+        
+        private final PuddingFile file;
+        private final long first;
+        private final long last;
+        
+        Load(@NotNull PuddingFile file, long first, long last){
+            super(() -> {
+                file.loadBlocks(first, last);
+                return null;
+            });
+            this.file = file;
+            this.first = first;
+            this.last = last;
+        }
+        
+        @Override
+        protected void done(){
+            for(long index = first; index <= last; index++)
+                pending.remove(new BlockKey(file, index), this);
+        }
+        
+    }
+    
+}
@@ -1,10 +1,17 @@
 package academy.hekiyou.pudding.fs;
 
+import academy.hekiyou.pudding.cache.MemoryPressureController;
+import academy.hekiyou.pudding.cache.buffer.TieredBufferCache;
+import academy.hekiyou.pudding.metrics.PuddingMetrics;
+import academy.hekiyou.pudding.trace.TraceRecorder;
 import jnr.ffi.Platform;
 import jnr.ffi.Pointer;
+import jnr.ffi.Struct;
 import jnr.ffi.types.mode_t;
 import jnr.ffi.types.off_t;
 import jnr.ffi.types.size_t;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.serce.jnrfuse.ErrorCodes;
 import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.FuseStubFS;
@@ -15,20 +22,141 @@ import ru.serce.jnrfuse.struct.Statvfs;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
-import java.util.function.Function;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * A simple FSUE file system that denies writing and most reading operations
  */
 public class PuddingFS extends FuseStubFS {
-
-    private final Map<String, PuddingFile> files;
+    
+    // where the hot set is saved between runs; override with -Dpudding.snapshot=<file>, or leave empty to disable
+    private static final String SNAPSHOT = System.getProperty("pudding.snapshot", "pudding.snapshot");
+    // seconds between snapshots; override with -Dpudding.snapshot.interval=<seconds>
+    private static final int SNAPSHOT_INTERVAL = Integer.getInteger("pudding.snapshot.interval", 60);
+    // whether snapshots include block contents; enable with -Dpudding.snapshot.data=true
+    private static final boolean SNAPSHOT_DATA = Boolean.getBoolean("pudding.snapshot.data");
+    // blocks restored in parallel on startup; override with -Dpudding.snapshot.threads=<threads>
+    private static final int SNAPSHOT_THREADS = Integer.getInteger("pudding.snapshot.threads",
+            Runtime.getRuntime().availableProcessors());
+    // records opens and reads for TraceSimulator when set; enable with -Dpudding.trace=<file>
+    private static final String TRACE = System.getProperty("pudding.trace", "");
+    // seconds before getattr rechecks a backing file in the background; override with -Dpudding.attr.refresh=<seconds>
+    private static final long ATTR_REFRESH = TimeUnit.SECONDS.toNanos(Long.getLong("pudding.attr.refresh", 5));
+    // whether changes to the backing directory are picked up as they happen; disable with -Dpudding.watch=false
+    private static final boolean WATCH = Boolean.parseBoolean(System.getProperty("pudding.watch", "true"));
+    // quiet period that ends a burst of changes; override with -Dpudding.watch.debounce=<millis>
+    private static final long WATCH_DEBOUNCE = Long.getLong("pudding.watch.debounce", 500);
+    // longest a burst of changes is held back; override with -Dpudding.watch.maxDelay=<millis>
+    private static final long WATCH_MAX_DELAY = Long.getLong("pudding.watch.maxDelay", 5000);
+    // wait before trying a failed rescan again, doubling with every further failure up to the maximum
+    private static final long RESCAN_RETRY_MIN = 1000, RESCAN_RETRY_MAX = TimeUnit.MINUTES.toMillis(1);
+    // whether hot files open with keep_cache, so the kernel serves repeat reads from its page cache; disable with
+    // -Dpudding.fuse.keepCache=false
+    private static final boolean KEEP_CACHE =
+            Boolean.parseBoolean(System.getProperty("pudding.fuse.keepCache", "true"));
+    // whether files the kernel doesn't keep open with direct_io, so their pages aren't cached twice; enable with
+    // -Dpudding.fuse.directIo=true (breaks mmap of those files)
+    private static final boolean DIRECT_IO = Boolean.getBoolean("pudding.fuse.directIo");
+    // whether the cache shrinks and grows with the memory left on the machine; disable with
+    // -Dpudding.memory.adaptive=false
+    private static final boolean MEMORY_ADAPTIVE =
+            Boolean.parseBoolean(System.getProperty("pudding.memory.adaptive", "true"));
+    // available memory below which the cache shrinks; override with -Dpudding.memory.low=<bytes>
+    private static final long MEMORY_LOW = Long.getLong("pudding.memory.low",
+            Math.max(256L << 20, MemoryPressureController.totalMemory() / 20));
+    // available memory above which the cache grows back; override with -Dpudding.memory.high=<bytes>
+    private static final long MEMORY_HIGH = Long.getLong("pudding.memory.high", MEMORY_LOW * 2);
+    // smallest the cache shrinks to, by default an eighth of its budget; override with -Dpudding.memory.min=<bytes>
+    private static final long MEMORY_MIN = Long.getLong("pudding.memory.min", -1);
+    // milliseconds between memory samples; override with -Dpudding.memory.interval=<millis>
+    private static final long MEMORY_INTERVAL = Long.getLong("pudding.memory.interval", 1000);
+    // seconds after shrinking before the cache may shrink again; override with -Dpudding.memory.shrinkDelay=<seconds>
+    private static final long MEMORY_SHRINK_DELAY = Long.getLong("pudding.memory.shrinkDelay", 5);
+    // seconds after shrinking before the cache may grow again; override with -Dpudding.memory.growDelay=<seconds>
+    private static final long MEMORY_GROW_DELAY = Long.getLong("pudding.memory.growDelay", 30);
+    // fuse_file_info's direct_io and keep_cache bitfields, which jnr-fuse has no fields for
+    private static final int FI_DIRECT_IO = 1;
+    private static final int FI_KEEP_CACHE = 1 << 1;
+    
+    private static final PuddingMetrics METRICS = PuddingMetrics.get();
+    
+    private final Path real;
+    // replaced wholesale when files are added or removed
+    private volatile PathIndex index;
+    private final HandleTable handles = new HandleTable();
+    @Nullable
+    private final Path snapshot;
+    @Nullable
+    private ScheduledExecutorService snapshotter;
+    @Nullable
+    private final TraceRecorder recorder;
+    // applies every change to the index, one at a time
+    private final ScheduledExecutorService refresher;
+    // nodes whose attributes are being refreshed, so getattr storms don't queue the same node over and over
+    private final Set<Integer> refreshing = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private FileWatcher watcher;
+    // only touched by the refresher: the pending retry of a failed rescan, and how long it was scheduled out
+    @Nullable
+    private ScheduledFuture<?> rescanRetry;
+    private long rescanBackoff = 0;
+    @Nullable
+    private MemoryPressureController memoryController;
     
     public PuddingFS(Path real) throws IOException {
-        files = generateFS(real);
+        this.real = real;
+        index = PathIndex.build(real);
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pudding-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if(WATCH)
+            startWatching();
+        recorder = TRACE.isEmpty() ? null : new TraceRecorder(Paths.get(TRACE));
+        snapshot = SNAPSHOT.isEmpty() ? null : Paths.get(SNAPSHOT);
+        if(snapshot != null)
+            startSnapshots();
+        if(MEMORY_ADAPTIVE)
+            startMemoryController();
+    }
+    
+    @Override
+    public void umount(){
+        super.umount();
+        refresher.shutdownNow();
+        if(memoryController != null)
+            memoryController.close();
+        if(watcher != null){
+            try {
+                watcher.close();
+            } catch(IOException exc){
+                System.out.println("Failed to stop watching " + real + ": " + exc);
+            }
+        }
+        if(snapshotter != null){
+            snapshotter.shutdownNow();
+            snapshotter = null;
+            writeSnapshot();
+        }
+        if(recorder != null){
+            try {
+                recorder.close();
+            } catch(IOException exc){
+                System.out.println("Failed to finish trace " + TRACE + ": " + exc);
+            }
+        }
+        PuddingFile.closeChannels();
     }
     
     @Override
@@ -42,49 +170,95 @@ public class PuddingFS extends FuseStubFS {
     
     @Override
     public int readdir(String path, Pointer buf, FuseFillDir filter, @off_t long offset, FuseFileInfo fi){
-        if(path.equals("/")){
-            for(PuddingFile file : files.values())
-                filter.apply(buf, file.getName(), null, 0);
+        long start = System.nanoTime();
+        try {
+            int dir = index.find(path);
+            if(dir == PathIndex.MISSING)
+                return -ErrorCodes.ENOENT();
+            if(!index.isDirectory(dir))
+                return -ErrorCodes.ENOTDIR();
+            
+            // each entry's offset is where to carry on after it, so huge directories can be listed a page at a time
+            int count = index.getChildCount(dir);
+            for(long i = Math.max(offset, 0); i < count; i++){
+                if(filter.apply(buf, index.getName(index.getChild(dir, (int) i)), null, i + 1) != 0)
+                    break;
+            }
             return 0;
-        } else {
-            return -ErrorCodes.ENOENT();
+        } finally {
+            METRICS.getReaddir().recordSince(start);
         }
     }
     
     @Override
     public int read(String path, Pointer buf, long size, long offset, FuseFileInfo fi){
-        PuddingFile file = getFile(path);
-        if(file == null)
-            return -ErrorCodes.ENOENT();
-        return file.read(buf, size, offset);
+        long start = System.nanoTime();
+        try {
+            FileHandle handle = handles.get(fi.fh.get());
+            PuddingFile file = handle != null ? handle.getFile() : index.getFile(path);
+            if(file == null)
+                return -ErrorCodes.ENOENT();
+            if(recorder != null)
+                recorder.read(file, offset, size);
+            return file.read(handle, buf, size, offset);
+        } finally {
+            METRICS.getRead().recordSince(start);
+        }
     }
     
     @Override
     public int open(String path, FuseFileInfo fi){
-        PuddingFile file = getFile(path);
-        if(file == null)
-            return -ErrorCodes.ENOENT();
-        file.incrementFreq();
+        long start = System.nanoTime();
+        try {
+            int node = index.find(path);
+            if(node == PathIndex.MISSING)
+                return -ErrorCodes.ENOENT();
+            PuddingFile file = index.getFile(node);
+            if(file == null)
+                return -ErrorCodes.EISDIR();
+            if(recorder != null)
+                recorder.open(file);
+            // lets read() find the file without going through the path
+            fi.fh.set(handles.open(file));
+            boolean keepCache = KEEP_CACHE && file.keepKernelCache();
+            setCacheFlags(fi, DIRECT_IO && !keepCache, keepCache);
+            file.incrementFreq();
+            return 0;
+        } finally {
+            METRICS.getOpen().recordSince(start);
+        }
+    }
+    
+    /**
+     * Sets the direct_io and keep_cache bits of an open's fuse_file_info. They share the word right after writepage
+     * in both libfuse 2 and WinFsp, starting from the least significant bit.
+     */
+    private static void setCacheFlags(@NotNull FuseFileInfo fi, boolean directIo, boolean keepCache){
+        Pointer memory = Struct.getMemory(fi);
+        long offset = fi.writepage.offset() + 4;
+        int bits = memory.getInt(offset) & ~(FI_DIRECT_IO | FI_KEEP_CACHE);
+        if(directIo)
+            bits |= FI_DIRECT_IO;
+        if(keepCache)
+            bits |= FI_KEEP_CACHE;
+        memory.putInt(offset, bits);
+    }
+    
+    @Override
+    public int release(String path, FuseFileInfo fi){
+        handles.release(fi.fh.get());
+        fi.fh.set(0);
         return 0;
     }
     
     @Override
     public int getattr(String path, FileStat stat){
-        if(path.equals("/")){
-            stat.st_mode.set(FileStat.S_IFDIR | 0744);
-        } else {
-            PuddingFile file = getFile(path);
-            if(file != null){
-                stat.st_mode.set(FileStat.S_IFREG | 0744);
-                stat.st_size.set(file.getSize());
-            } else {
-                System.out.println("Failed to find file " + path);
-                return -ErrorCodes.ENOENT();
-            }
+        long start = System.nanoTime();
+        try {
+            return fillAttributes(path, stat);
+        } finally {
+            METRICS.getGetattr().recordSince(start);
         }
-        stat.st_uid.set(getContext().uid.get());
-        stat.st_gid.set(getContext().gid.get());
-        return 0;
     }
     
     @Override
@@ -132,10 +306,177 @@ public class PuddingFS extends FuseStubFS {
         return fail("create", path, "mode", mode, "fi", fi.toString());
     }
     
-    private PuddingFile getFile(String path){
-        if(path.startsWith("/"))
-            path = path.substring(path.indexOf('/') + 1);
-        return files.get(path);
+    private int fillAttributes(String path, FileStat stat){
+        // misses are as cheap as hits: the index holds the whole tree, so anything it doesn't know doesn't exist
+        int node = index.find(path);
+        if(node == PathIndex.MISSING)
+            return -ErrorCodes.ENOENT();
+        
+        FileAttributes attributes = index.getAttributes(node);
+        if(attributes.isOlderThan(ATTR_REFRESH))
+            refreshAttributes(node);
+        attributes.fill(stat);
+        stat.st_uid.set(getContext().uid.get());
+        stat.st_gid.set(getContext().gid.get());
+        return 0;
+    }
+    
+    /**
+     * Rereads a node's attributes in the background; getattr answers with the ones it has in the meantime.
+     */
+    private void refreshAttributes(int node){
+        if(!refreshing.add(node))
+            return;
+        
+        PathIndex current = index;
+        try {
+            refresher.execute(() -> {
+                try {
+                    // node numbers only mean something within the index they came from
+                    if(current == index)
+                        current.refresh(node);
+                } catch(IOException exc){
+                    System.out.println("Failed to refresh attributes of " + current.getPath(node) + ": " + exc);
+                } finally {
+                    refreshing.remove(node);
+                }
+            });
+        } catch(RejectedExecutionException exc){
+            // unmounting
+            refreshing.remove(node);
+        }
+    }
+    
+    /**
+     * Lets the cache give memory back when the machine runs low on it.
+     */
+    private void startMemoryController(){
+        TieredBufferCache cache = PuddingFile.getCache();
+        long min = MEMORY_MIN > 0 ? MEMORY_MIN : cache.getCapacity() / 8;
+        try {
+            memoryController = new MemoryPressureController(cache, Math.max(min, PuddingFile.getBlockSize()),
+                    MEMORY_LOW, MEMORY_HIGH, TimeUnit.SECONDS.toNanos(MEMORY_SHRINK_DELAY),
+                    TimeUnit.SECONDS.toNanos(MEMORY_GROW_DELAY));
+        } catch(IllegalArgumentException exc){
+            System.out.println("Not adapting the cache to memory pressure: " + exc.getMessage());
+            return;
+        }
+        memoryController.start(MEMORY_INTERVAL);
+    }
+    
+    /**
+     * Watches the backing tree for changes, falling back to the periodic attribute refresh if that isn't possible.
+     */
+    private void startWatching(){
+        try {
+            watcher = new FileWatcher(real, WATCH_DEBOUNCE, WATCH_MAX_DELAY, (modified, restructured) -> {
+                try {
+                    refresher.execute(() -> applyChanges(modified, restructured));
+                } catch(RejectedExecutionException exc){
+                    // unmounting
+                }
+            });
+            watchDirectories(index);
+            watcher.start();
+        } catch(IOException exc){
+            System.out.println("Not watching " + real + " for changes: " + exc);
+            watcher = null;
+        }
+    }
+    
+    private void watchDirectories(@NotNull PathIndex index) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        index.forEachDirectory(directories::add);
+        for(Path directory : directories)
+            watcher.register(directory);
+    }
+    
+    /**
+     * Brings the index up to date with a batch of changes from the {@link FileWatcher}. Files whose contents changed
+     * have their cached blocks dropped; if anything was added or removed, the whole tree is rescanned.
+     */
+    private void applyChanges(@NotNull Set<Path> modified, boolean restructured){
+        PathIndex current = index;
+        if(!restructured){
+            for(Path path : modified){
+                int node = current.find(path);
+                if(node == PathIndex.MISSING || current.isDirectory(node))
+                    continue;
+                
+                try {
+                    current.refresh(node);
+                } catch(IOException exc){
+                    // most likely deleted since, which shows up in a later batch
+                    System.out.println("Failed to refresh attributes of " + path + ": " + exc);
+                }
+            }
+            return;
+        }
+        rescan();
+    }
+    
+    /**
+     * Rebuilds the index from the backing tree. A failed rescan is retried with a growing delay, since nothing else
+     * may come along to trigger one, and until one succeeds files that were added or removed go unnoticed.
+     */
+    private void rescan(){
+        if(rescanRetry != null){
+            rescanRetry.cancel(false);
+            rescanRetry = null;
+        }
+        
+        PathIndex current = index;
+        try {
+            PathIndex next = PathIndex.build(real, current);
+            index = next;
+            current.forEachFile(file -> {
+                if(next.getFile(file.getName()) != file)
+                    file.invalidate();
+            });
+            if(watcher != null)
+                watchDirectories(next);
+            rescanBackoff = 0;
+        } catch(IOException exc){
+            rescanBackoff = rescanBackoff == 0 ? RESCAN_RETRY_MIN : Math.min(rescanBackoff * 2, RESCAN_RETRY_MAX);
+            System.out.println("Failed to rescan " + real + ", retrying in " + rescanBackoff + " ms: " + exc);
+            try {
+                rescanRetry = refresher.schedule(this::rescan, rescanBackoff, TimeUnit.MILLISECONDS);
+            } catch(RejectedExecutionException rejected){
+                // unmounting
+            }
+        }
+    }
+    
+    /**
+     * Restores the previous snapshot in the background, so that mounting doesn't wait on it, then keeps saving new
+     * ones periodically.
+     */
+    private void startSnapshots(){
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pudding-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.execute(() -> {
+            if(!Files.isRegularFile(snapshot))
+                return;
+            try {
+                CacheSnapshot.restore(snapshot, index::getFile, SNAPSHOT_THREADS);
+            } catch(IOException exc){
+                System.out.println("Failed to restore snapshot " + snapshot + ": " + exc);
+            } catch(InterruptedException exc){
+                Thread.currentThread().interrupt();
+            }
+        });
+        snapshotter.scheduleWithFixedDelay(this::writeSnapshot, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+    }
+    
+    private void writeSnapshot(){
+        try {
+            CacheSnapshot.write(snapshot, SNAPSHOT_DATA);
+        } catch(IOException exc){
+            System.out.println("Failed to write snapshot " + snapshot + ": " + exc);
+        }
     }
     
     private int fail(String functionName, String path, Object... args){
@@ -152,15 +493,4 @@ public class PuddingFS extends FuseStubFS {
         return -ErrorCodes.EACCES();
     }
     
-    private Map<String, PuddingFile> generateFS(Path path) throws IOException {
-        return Files.list(path)
-                .parallel()
-                .filter(Files::isRegularFile)
-                .map(PuddingFile::new)
-                .collect(Collectors.toConcurrentMap(
-                        PuddingFile::getName,
-                        Function.identity()
-                ));
-    }
-    
 }
@@ -1,39 +1,134 @@
 package academy.hekiyou.pudding.fs;
 
+import academy.hekiyou.pudding.cache.CacheTier;
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
 import academy.hekiyou.pudding.cache.TieredCache;
+import academy.hekiyou.pudding.cache.TieredPolicy;
+import academy.hekiyou.pudding.cache.WindowTinyLfuPolicy;
+import academy.hekiyou.pudding.cache.buffer.BlockKey;
+import academy.hekiyou.pudding.cache.buffer.BufferPool;
+import academy.hekiyou.pudding.cache.buffer.CachedBufferEntry;
+import academy.hekiyou.pudding.cache.buffer.SlabSlot;
 import academy.hekiyou.pudding.cache.buffer.TieredBufferCache;
+import academy.hekiyou.pudding.metrics.PuddingMetrics;
+import com.kenai.jffi.MemoryIO;
 import jnr.ffi.Pointer;
-import jnr.ffi.Runtime;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class PuddingFile {
     
-    public static long MISS = 0, HIT = 0;
-    private static final TieredBufferCache TIERED_CACHE = new TieredBufferCache(500);
-    private static final Pointer INVALID = Pointer.newIntPointer(Runtime.getSystemRuntime(), 0);
+    // byte budget for cached file contents; override with -Dpudding.cache.bytes=<bytes>
+    private static final long CACHE_BYTES = Long.getLong("pudding.cache.bytes", 1L << 30);
+    // eviction policy; "tiered" (default) or "tinylfu", override with -Dpudding.cache.policy=<name>
+    private static final String CACHE_POLICY = System.getProperty("pudding.cache.policy", "tiered");
+    private static final double CACHE_COMPRESSED = compressedShare();
+    // hits between halving all frequencies of the tiered policy; override with -Dpudding.cache.decayInterval=<hits>
+    private static final int DECAY_INTERVAL = Integer.getInteger("pudding.cache.decayInterval",
+            TieredPolicy.DEFAULT_DECAY_INTERVAL);
+    // granularity at which files are cached; override with -Dpudding.block.size=<bytes>
+    private static final int BLOCK_SIZE = Integer.getInteger("pudding.block.size", 256 * 1024);
+    private static final TieredBufferCache TIERED_CACHE = new TieredBufferCache(
+            (long) (CACHE_BYTES * (1 - CACHE_COMPRESSED)), BLOCK_SIZE,
+            CACHE_POLICY.equalsIgnoreCase("tinylfu") ?
+                    WindowTinyLfuPolicy::new :
+                    cap -> new TieredPolicy<>(cap, FrequencyBucketList::new, DECAY_INTERVAL),
+            (long) (CACHE_BYTES * CACHE_COMPRESSED));
+    // blocks loaded in the background at once; override with -Dpudding.prefetch.threads=<threads>
+    private static final int PREFETCH_THREADS = Integer.getInteger("pudding.prefetch.threads", 4);
+    // blocks waiting to be prefetched before further hints are dropped; override with -Dpudding.prefetch.depth=<blocks>
+    private static final int PREFETCH_DEPTH = Integer.getInteger("pudding.prefetch.depth", 64);
+    // blocks loaded ahead of a sequential reader; override with -Dpudding.prefetch.readAhead=<blocks>
+    private static final int READ_AHEAD = Integer.getInteger("pudding.prefetch.readAhead", 4);
+    // most bytes read from the disk at once when loading adjacent blocks together; override with
+    // -Dpudding.read.maxBatch=<bytes>
+    private static final int MAX_BATCH = Integer.getInteger("pudding.read.maxBatch", 1024 * 1024);
+    // staging buffers kept per size class for reuse between threads; override with -Dpudding.io.pooledBuffers=<count>
+    private static final int POOLED_BUFFERS = Integer.getInteger("pudding.io.pooledBuffers", 8);
+    // backing files kept open between loads; override with -Dpudding.io.channels=<files>
+    private static final int OPEN_CHANNELS = Integer.getInteger("pudding.io.channels", 64);
+    private static final BufferPool BUFFERS = new BufferPool(4096, Math.max(4096, Math.max(MAX_BATCH, BLOCK_SIZE)),
+            POOLED_BUFFERS);
+    private static final ChannelCache CHANNELS = new ChannelCache(OPEN_CHANNELS);
+    private static final Prefetcher PREFETCHER = new Prefetcher(PREFETCH_THREADS, PREFETCH_DEPTH, READ_AHEAD);
+    private static final MemoryIO MEMORY = MemoryIO.getInstance();
+    
+    private static final PuddingMetrics METRICS = PuddingMetrics.get();
+    
+    static {
+        TIERED_CACHE.setEvictionListener(PREFETCHER::evicted);
+        METRICS.bind(TIERED_CACHE);
+    }
     
     private final Path path;
+    // relative to the root of the file system, with forward slashes
+    private final String name;
     private final long size;
+    // of the contents this file stands for, in milliseconds; a changed file gets a new PuddingFile
+    private final long modified;
+    // where the last read without a handle ended, to spot sequential readers
+    private volatile long lastReadEnd = -1;
+    // cache entries of blocks looked up before, by index, so that hits can skip the lookup altogether
+    private final AtomicReferenceArray<CachedBufferEntry> resolved;
+    // set once the backing file has changed; nothing more of it is cached from then on
+    private volatile boolean stale;
+    // whether the file has been opened since it was created; until it has, the kernel may still hold pages of the
+    // contents it replaced
+    private volatile boolean opened;
+    // set once the file has been hot enough for the kernel to keep its pages between opens
+    private volatile boolean kernelCached;
     
     public PuddingFile(Path path){
+        this(path, path.getFileName().toString(), attributesOf(path));
+    }
+    
+    private PuddingFile(Path path, String name, BasicFileAttributes attrs){
+        this(path, name, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+    
+    /**
+     * @param name     Path of the file within the file system
+     * @param size     Size of the file, as already read from its attributes
+     * @param modified Modification time of the file in milliseconds, read along with its size
+     */
+    PuddingFile(Path path, String name, long size, long modified){
+        this.path = path;
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.resolved = new AtomicReferenceArray<>((int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE));
+    }
+    
+    // share of the byte budget that keeps evicted blocks LZ4-compressed, 0 for none; override with
+    // -Dpudding.cache.compressed=<fraction>
+    private static double compressedShare(){
+        double share = Double.parseDouble(System.getProperty("pudding.cache.compressed", "0"));
+        if(!(share >= 0 && share < 1))
+            throw new IllegalArgumentException("pudding.cache.compressed must be at least 0 and below 1: " + share);
+        return share;
+    }
+    
+    private static BasicFileAttributes attributesOf(Path path){
         try {
-            this.path = path;
-            this.size = Files.size(path);
+            return Files.readAttributes(path, BasicFileAttributes.class);
         } catch (IOException exc){
-            throw new IllegalStateException("Failed to get file size for " + path, exc);
+            throw new IllegalStateException("Failed to read the attributes of " + path, exc);
         }
     }
     
+    /**
+     * @return the file's path within the file system, without a leading slash
+     */
     public String getName(){
-        return path.getFileName().toString();
+        return name;
     }
     
     @Override
@@ -45,48 +140,445 @@ public class PuddingFile {
         return size;
     }
     
+    /**
+     * @return the backing file's modification time in milliseconds, as of when its size was read
+     */
+    public long getModified(){
+        return modified;
+    }
+    
     public int read(Pointer buffer, long reqSize, long offset){
-        try {
-            Pointer content = getCachedCopy();
-            if(content == INVALID)
-                return -1;
+        return read(null, buffer, reqSize, offset);
+    }
     
-            int toRead = (int) Math.min(content.size() - offset, reqSize);
-            content.transferTo(offset, buffer, 0, toRead);
-            return toRead;
+    /**
+     * @param handle The open file read through, which tracks where its reader is; null to track it per file instead
+     */
+    int read(@Nullable FileHandle handle, Pointer buffer, long reqSize, long offset){
+        try {
+            if(offset >= size)
+                return 0;
+            
+            int done = copy(handle, buffer, (int) Math.min(size - offset, reqSize), offset);
+            long lastEnd = handle != null ? handle.getLastReadEnd() : lastReadEnd;
+            if(offset == lastEnd)
+                PREFETCHER.readAhead(this, (offset + done - 1) / BLOCK_SIZE);
+            if(handle != null)
+                handle.setLastReadEnd(offset + done);
+            else
+                lastReadEnd = offset + done;
+            return done;
         } catch (Throwable t){
             t.printStackTrace(System.out);
             return -1;
         }
     }
     
+    /**
+     * Copies toRead bytes from offset on, block by block, loading only the blocks that aren't cached yet.
+     */
+    private int copy(@Nullable FileHandle handle, Pointer buffer, int toRead, long offset) throws IOException {
+        int done = 0;
+        while(done < toRead){
+            long position = offset + done;
+            long index = position / BLOCK_SIZE;
+            int blockOffset = (int) (position - index * BLOCK_SIZE);
+            
+            int chunk = Math.min(toRead - done, getBlockLength(index) - blockOffset);
+            CachedBufferEntry entry = handle != null ? handle.getCurrent() : null;
+            if(entry == null || entry.getKey().getIndex() != index)
+                entry = resolved.get((int) index);
+            if(entry != null && copyResolved(entry, blockOffset, buffer, done, chunk)){
+                if(handle != null)
+                    handle.setCurrent(entry);
+                done += chunk;
+                continue;
+            }
+            
+            entry = getCachedBlock(index, chunk);
+            if(entry == null && copyCompressed(index, blockOffset, buffer, done, chunk)){
+                done += chunk;
+                continue;
+            }
+            if(entry == null)
+                entry = loadBlock(index, chunk);
+            if(entry != null){
+                try {
+                    entry.getPointer().transferTo(blockOffset, buffer, done, chunk);
+                } finally {
+                    entry.unpin();
+                }
+                if(handle != null)
+                    handle.setCurrent(entry);
+            } else {
+                loadUncached(index, blockOffset, buffer, done, chunk);
+            }
+            done += chunk;
+        }
+        return done;
+    }
+    
     public void incrementFreq(){
-        // dummy call...
-        TIERED_CACHE.get(this);
-    }
-    
-    @NotNull
-    private Pointer getCachedCopy(){
-        Pointer cached = TIERED_CACHE.getPointerFor(this);
-        if(cached == null){
-            try {
-                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
-                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-                TIERED_CACHE.put(this, buffer);
-                cached = TIERED_CACHE.getPointerFor(this);
-            } catch(IOException exc) {
-                exc.printStackTrace();
-                return INVALID;
+        // the first block usually holds the header every reader looks at; start loading it before the read comes in
+        if(!TIERED_CACHE.touch(new BlockKey(this, 0)))
+            PREFETCHER.prefetch(this, 0);
+    }
+    
+    /**
+     * Loads a block into the cache ahead of time, as though it had already been hit freq times.
+     *
+     * @param data Contents of the block if known (i.e from a snapshot), or null to read it from disk
+     * @return false if the block is out of range, already cached, or wouldn't fit without evicting anything
+     */
+    boolean warm(long index, int freq, @Nullable byte[] data) throws IOException {
+        if(index < 0 || index * BLOCK_SIZE >= size)
+            return false;
+        
+        BlockKey key = new BlockKey(this, index);
+        if(TIERED_CACHE.contains(key) || TIERED_CACHE.getWeight() + getBlockLength(index) > TIERED_CACHE.getCapacity())
+            return false;
+        
+        boolean[] loaded = new boolean[1];
+        TIERED_CACHE.computeIfAbsent(key, freq, block -> {
+            SlabSlot slot = loadSlot(block, data);
+            loaded[0] = slot != null;
+            return slot;
+        });
+        return loaded[0];
+    }
+    
+    /**
+     * Drops every cached block of this file because the backing file has changed. Reads that still come in (i.e from
+     * handles opened before the change) go to the disk directly.
+     */
+    void invalidate(){
+        stale = true;
+        for(int i = 0; i < resolved.length(); i++){
+            resolved.set(i, null);
+            TIERED_CACHE.invalidate(new BlockKey(this, i));
+        }
+        CHANNELS.invalidate(this);
+    }
+    
+    /**
+     * Decides, on open, whether the kernel may keep the pages it read through earlier opens instead of dropping them.
+     * That only happens once the first block has made it into {@link CacheTier#CONSTANTLY}, and never on the first
+     * open after a change, so that pages of the old contents always go away.
+     *
+     * @return true to open with keep_cache
+     */
+    boolean keepKernelCache(){
+        boolean first = !opened;
+        opened = true;
+        if(first || stale)
+            return false;
+        
+        if(!kernelCached && TIERED_CACHE.getTier(new BlockKey(this, 0)) == CacheTier.CONSTANTLY)
+            kernelCached = true;
+        return kernelCached;
+    }
+    
+    boolean isStale(){
+        return stale;
+    }
+    
+    /**
+     * Loads the blocks from first to last that aren't cached yet, i.e on behalf of the {@link Prefetcher}. Runs of
+     * adjacent missing blocks are read from the disk at once (up to {@link #MAX_BATCH} bytes at a time) rather than
+     * with a read per block.
+     *
+     * @return the number of blocks loaded
+     */
+    int loadBlocks(long first, long last) throws IOException {
+        last = Math.min(last, resolved.length() - 1);
+        BlockKey[] keys = new BlockKey[Math.max(1, MAX_BATCH / BLOCK_SIZE)];
+        SlabSlot[] slots = new SlabSlot[keys.length];
+        ByteBuffer[] buffers = new ByteBuffer[keys.length];
+        int count = 0;
+        int loaded = 0;
+        try {
+            for(long index = Math.max(first, 0); index <= last && !stale; index++){
+                BlockKey key = new BlockKey(this, index);
+                if(TIERED_CACHE.contains(key)){
+                    loaded += flush(keys, slots, buffers, count);
+                    count = 0;
+                    continue;
+                }
+                
+                int length = getBlockLength(index);
+                SlabSlot slot = TIERED_CACHE.allocate(length);
+                if(slot == null)
+                    break;
+                ByteBuffer buffer = slot.getBuffer();
+                buffer.limit(length);
+                keys[count] = key;
+                slots[count] = slot;
+                buffers[count] = buffer;
+                
+                if(TIERED_CACHE.restore(key, buffer)){
+                    // needs no reading at all, but breaks the run on disk
+                    loaded += flush(keys, slots, buffers, count);
+                    slots[count] = null;
+                    count = 0;
+                    if(insert(key, slot))
+                        loaded++;
+                } else if(++count == keys.length){
+                    loaded += flush(keys, slots, buffers, count);
+                    count = 0;
+                }
             }
-            MISS++;
-        } else {
-            HIT++;
+            loaded += flush(keys, slots, buffers, count);
+        } catch(IOException | RuntimeException exc){
+            // slots are taken out of the array as they're handed to the cache, so whatever is left is still ours
+            for(SlabSlot slot : slots){
+                if(slot != null)
+                    slot.release();
+            }
+            throw exc;
+        }
+        return loaded;
+    }
+    
+    public int getBlockLength(long index){
+        return (int) Math.min(BLOCK_SIZE, size - index * BLOCK_SIZE);
+    }
+    
+    public Path getPath(){
+        return path;
+    }
+    
+    public static int getBlockSize(){
+        return BLOCK_SIZE;
+    }
+    
+    static TieredBufferCache getCache(){
+        return TIERED_CACHE;
+    }
+    
+    /**
+     * Copies part of a block straight from the memory of an entry resolved by an earlier read.
+     *
+     * @return false if the entry has been evicted (in which case it's forgotten), so the block has to be looked up
+     */
+    private boolean copyResolved(@NotNull CachedBufferEntry entry, int blockOffset,
+                                 @NotNull Pointer buffer, int bufferOffset, int length){
+        if(!entry.pin()){
+            resolved.compareAndSet((int) entry.getKey().getIndex(), entry, null);
+            return false;
+        }
+        
+        try {
+            if(buffer.isDirect())
+                MEMORY.copyMemory(entry.getAddress() + blockOffset, buffer.address() + bufferOffset, length);
+            else
+                entry.getPointer().transferTo(blockOffset, buffer, bufferOffset, length);
+        } finally {
+            entry.unpin();
         }
+        TIERED_CACHE.recordHit(entry);
+        METRICS.recordByteHit(length);
+        return true;
+    }
+    
+    /**
+     * Looks up a cached block.
+     *
+     * @param bytes How much of the block is about to be read, for metrics
+     * @return the block's entry, pinned for the caller to unpin, or null on a miss
+     */
+    @Nullable
+    private CachedBufferEntry getCachedBlock(long index, int bytes){
+        CachedBufferEntry cached = TIERED_CACHE.getEntryFor(new BlockKey(this, index));
+        if(cached == null || !cached.pin())
+            return null;
+        
+        resolved.set((int) index, cached);
+        METRICS.recordByteHit(bytes);
         return cached;
     }
     
+    /**
+     * Loads a block into the cache after a miss.
+     *
+     * @param bytes How much of the block is about to be read, for metrics
+     * @return the block's entry, pinned for the caller to unpin, or null if it couldn't be cached
+     */
+    @Nullable
+    private CachedBufferEntry loadBlock(long index, int bytes) throws IOException {
+        // joins the load if another reader (or the prefetcher) is already on it
+        CachedBufferEntry loaded = TIERED_CACHE.loadPinned(new BlockKey(this, index), block -> loadSlot(block, null));
+        METRICS.recordByteMiss(bytes);
+        return loaded;
+    }
+    
+    /**
+     * Serves part of a block missed in the cache from the compressed store, if it's there. Only the decompression
+     * happens on the reader's thread; making room for the block in the cache again (which may evict) and taking it
+     * out of the store is left to the {@link Prefetcher}.
+     *
+     * @return false if the block isn't in the compressed store
+     */
+    private boolean copyCompressed(long index, int blockOffset, @NotNull Pointer dst, int dstOffset, int length){
+        BlockKey key = new BlockKey(this, index);
+        if(!TIERED_CACHE.isCompressed(key))
+            return false;
+        
+        ByteBuffer buffer = BUFFERS.acquire(getBlockLength(index));
+        try {
+            if(!TIERED_CACHE.decompress(key, buffer))
+                return false;
+            transfer(buffer, blockOffset, dst, dstOffset, length);
+        } finally {
+            BUFFERS.release(buffer);
+        }
+        METRICS.recordByteMiss(length);
+        PREFETCHER.prefetch(this, index);
+        return true;
+    }
+    
+    /**
+     * Reads a block into a freshly allocated slot, for the cache to insert.
+     *
+     * @param data Contents of the block if already known, or null to read it from disk
+     * @return the filled slot, or null if none could be freed up or the file has gone stale
+     */
+    @Nullable
+    private SlabSlot loadSlot(@NotNull BlockKey key, @Nullable byte[] data) throws IOException {
+        if(stale)
+            return null;
+        
+        int length = getBlockLength(key.getIndex());
+        SlabSlot slot = TIERED_CACHE.allocate(length);
+        if(slot == null)
+            return null;
+        
+        try {
+            ByteBuffer buffer = slot.getBuffer();
+            buffer.limit(length);
+            if(data != null && data.length == length)
+                buffer.put(data);
+            else if(!TIERED_CACHE.restore(key, buffer))
+                readFully(buffer, key.getIndex() * BLOCK_SIZE);
+        } catch(IOException | RuntimeException exc){
+            slot.release();
+            throw exc;
+        }
+        return slot;
+    }
+    
+    /**
+     * Reads a run of adjacent blocks into their slots and hands them to the cache. The run is read with a single
+     * positional read into a pooled staging buffer and copied out from there, since the channel is shared and so
+     * can't be scattered from at its own position.
+     *
+     * @return the number of blocks inserted
+     */
+    private int flush(@NotNull BlockKey[] keys, @NotNull SlabSlot[] slots, @NotNull ByteBuffer[] buffers,
+                      int count) throws IOException {
+        if(count == 0)
+            return 0;
+        
+        int length = 0;
+        for(int i = 0; i < count; i++)
+            length += buffers[i].remaining();
+        ByteBuffer staging = BUFFERS.acquire(length);
+        try {
+            readFully(staging, keys[0].getIndex() * BLOCK_SIZE);
+            staging.flip();
+            for(int i = 0; i < count; i++){
+                staging.limit(staging.position() + buffers[i].remaining());
+                buffers[i].put(staging);
+            }
+        } finally {
+            BUFFERS.release(staging);
+        }
+        
+        int inserted = 0;
+        for(int i = 0; i < count; i++){
+            SlabSlot slot = slots[i];
+            slots[i] = null;
+            if(insert(keys[i], slot))
+                inserted++;
+        }
+        return inserted;
+    }
+    
+    /**
+     * Caches a block read ahead of time, unless somebody else has loaded it in the meantime or the file has gone stale,
+     * in which case the slot is released. Either way the caller no longer owns the slot afterwards.
+     */
+    private boolean insert(@NotNull BlockKey key, @NotNull SlabSlot slot) throws IOException {
+        boolean[] used = new boolean[1];
+        try {
+            if(!stale){
+                TIERED_CACHE.computeIfAbsent(key, block -> {
+                    used[0] = true;
+                    return slot;
+                });
+            }
+        } finally {
+            // once handed to the cache, the slot is the cache's to release, even if inserting it failed
+            if(!used[0])
+                slot.release();
+        }
+        return used[0];
+    }
+    
+    /**
+     * Reads part of a block straight into dst without caching it, for when there's nothing left to evict to make room
+     * for it.
+     */
+    private void loadUncached(long index, int blockOffset, @NotNull Pointer dst, int dstOffset, int length)
+            throws IOException {
+        ByteBuffer buffer = BUFFERS.acquire(length);
+        try {
+            readFully(buffer, index * BLOCK_SIZE + blockOffset);
+            transfer(buffer, 0, dst, dstOffset, length);
+        } finally {
+            BUFFERS.release(buffer);
+        }
+    }
+    
+    /**
+     * Copies length bytes of a direct buffer, from offset on, to dst.
+     */
+    private static void transfer(@NotNull ByteBuffer buffer, int offset, @NotNull Pointer dst, int dstOffset,
+                                 int length){
+        if(dst.isDirect()){
+            MEMORY.copyMemory(MEMORY.getDirectBufferAddress(buffer) + offset, dst.address() + dstOffset, length);
+        } else {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + length).position(offset);
+            view.get(bytes);
+            dst.put(dstOffset, bytes, 0, length);
+        }
+    }
+    
+    /**
+     * Fills buffer (from its position up to its limit) with the file's contents from position on.
+     */
+    private void readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        try(ChannelCache.Lease lease = CHANNELS.acquire(this)){
+            FileChannel channel = lease.getChannel();
+            while(buffer.hasRemaining()){
+                long at = position + buffer.position() - start;
+                if(channel.read(buffer, at) < 0)
+                    throw new EOFException("Unexpected end of " + path + " at " + at);
+            }
+        }
+    }
+    
     public static void printStats(){
         TIERED_CACHE.printStats();
     }
     
+    /**
+     * Closes the backing files kept open between loads.
+     */
+    static void closeChannels(){
+        CHANNELS.clear();
+    }
+    
 }
@@ -0,0 +1,40 @@
+package academy.hekiyou.pudding.metrics;
+
+import java.util.Map;
+
+/**
+ * What the block cache has been doing, as exported over JMX.
+ */
+public interface CacheMXBean {
+    
+    long getHits();
+    
+    long getMisses();
+    
+    double getHitRatio();
+    
+    long getByteHits();
+    
+    long getByteMisses();
+    
+    double getByteHitRatio();
+    
+    long getEvictions();
+    
+    long getPromotions();
+    
+    long getDemotions();
+    
+    long getLoads();
+    
+    long getLoadFailures();
+    
+    double getMeanLoadMicros();
+    
+    long getCapacityBytes();
+    
+    long getResidentBytes();
+    
+    Map<String, Long> getResidentBytesByTier();
+    
+}
@@ -0,0 +1,70 @@
+package academy.hekiyou.pudding.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The contents of a {@link LatencyHistogram} at some point in time. Values are in nanoseconds, and percentiles are
+ * reported as the upper end of the bucket they fall into.
+ */
+public class HistogramSnapshot {
+    
+    private final long[] counts;
+    private final long count;
+    private final long total;
+    
+    HistogramSnapshot(@NotNull long[] counts, long count, long total){
+        this.counts = counts;
+        this.count = count;
+        this.total = total;
+    }
+    
+    public long getCount(){
+        return count;
+    }
+    
+    public double getMean(){
+        return count == 0 ? 0 : total / (double) count;
+    }
+    
+    /**
+     * @param percentile Between 0 and 100
+     */
+    public long getPercentile(double percentile){
+        if(count == 0)
+            return 0;
+        
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= Math.max(1, rank))
+                return LatencyHistogram.highestIn(i);
+        }
+        return getMax();
+    }
+    
+    public long getMax(){
+        for(int i = counts.length - 1; i >= 0; i--)
+            if(counts[i] > 0)
+                return LatencyHistogram.highestIn(i);
+        return 0;
+    }
+    
+    /**
+     * @return what was recorded between earlier and this snapshot
+     */
+    @NotNull
+    public HistogramSnapshot since(@NotNull HistogramSnapshot earlier){
+        long[] delta = new long[counts.length];
+        for(int i = 0; i < counts.length; i++)
+            delta[i] = counts[i] - earlier.counts[i];
+        return new HistogramSnapshot(delta, count - earlier.count, total - earlier.total);
+    }
+    
+    @Override
+    public String toString(){
+        return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", count, getMean() / 1_000D,
+                getPercentile(50) / 1_000D, getPercentile(99) / 1_000D, getMax() / 1_000D);
+    }
+    
+}
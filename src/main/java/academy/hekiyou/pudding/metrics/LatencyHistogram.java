@@ -0,0 +1,103 @@
+package academy.hekiyou.pudding.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear histogram of durations in nanoseconds, in the style of HdrHistogram: every power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so any recorded value is known to within 1/8th (12.5%) of itself, from single
+ * nanoseconds up to hours, in a fixed few hundred buckets.
+ *
+ * Every bucket is a {@link LongAdder}, so recording from many threads at once never contends.
+ */
+public class LatencyHistogram implements LatencyMXBean {
+    
+    private static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+    
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    
+    public LatencyHistogram(){
+        for(int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+    
+    public void record(long nanos){
+        if(nanos < 0)
+            nanos = 0;
+        buckets[indexOf(nanos)].increment();
+        count.increment();
+        total.add(nanos);
+    }
+    
+    /**
+     * Records the time elapsed since start, as returned by {@link System#nanoTime()}.
+     */
+    public void recordSince(long start){
+        record(System.nanoTime() - start);
+    }
+    
+    @NotNull
+    public HistogramSnapshot snapshot(){
+        long[] counts = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return new HistogramSnapshot(counts, count.sum(), total.sum());
+    }
+    
+    @Override
+    public long getCount(){
+        return count.sum();
+    }
+    
+    @Override
+    public double getMeanMicros(){
+        return snapshot().getMean() / 1_000D;
+    }
+    
+    @Override
+    public double getP50Micros(){
+        return snapshot().getPercentile(50) / 1_000D;
+    }
+    
+    @Override
+    public double getP99Micros(){
+        return snapshot().getPercentile(99) / 1_000D;
+    }
+    
+    @Override
+    public double getP999Micros(){
+        return snapshot().getPercentile(99.9) / 1_000D;
+    }
+    
+    @Override
+    public double getMaxMicros(){
+        return snapshot().getMax() / 1_000D;
+    }
+    
+    static int indexOf(long value){
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    /**
+     * @return the largest value that lands in the given bucket
+     */
+    static long highestIn(int index){
+        if(index < SUB_BUCKETS)
+            return index;
+        
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+    
+}
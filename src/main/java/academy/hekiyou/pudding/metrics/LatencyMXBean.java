@@ -0,0 +1,20 @@
+package academy.hekiyou.pudding.metrics;
+
+/**
+ * How long one kind of FUSE call has been taking, as exported over JMX.
+ */
+public interface LatencyMXBean {
+    
+    long getCount();
+    
+    double getMeanMicros();
+    
+    double getP50Micros();
+    
+    double getP99Micros();
+    
+    double getP999Micros();
+    
+    double getMaxMicros();
+    
+}
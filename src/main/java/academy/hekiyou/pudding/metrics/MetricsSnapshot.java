@@ -0,0 +1,180 @@
+package academy.hekiyou.pudding.metrics;
+
+import academy.hekiyou.pudding.cache.CacheTier;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Everything {@link PuddingMetrics} tracks, as of one point in time. Counters and latencies are totals since startup
+ * unless the snapshot came out of {@link #since(MetricsSnapshot)}; gauges (capacity, resident bytes) are always
+ * current.
+ */
+public class MetricsSnapshot {
+    
+    final long time;
+    
+    final HistogramSnapshot read, open, getattr, readdir;
+    
+    final long hits, misses;
+    final long byteHits, byteMisses;
+    final long evictions, promotions, demotions;
+    final long loads, loadFailures, loadNanos;
+    
+    final long capacity, resident;
+    final Map<CacheTier, Long> residentByTier;
+    
+    MetricsSnapshot(long time,
+                    @NotNull HistogramSnapshot read, @NotNull HistogramSnapshot open,
+                    @NotNull HistogramSnapshot getattr, @NotNull HistogramSnapshot readdir,
+                    long hits, long misses, long byteHits, long byteMisses,
+                    long evictions, long promotions, long demotions,
+                    long loads, long loadFailures, long loadNanos,
+                    long capacity, long resident, @NotNull Map<CacheTier, Long> residentByTier){
+        this.time = time;
+        this.read = read;
+        this.open = open;
+        this.getattr = getattr;
+        this.readdir = readdir;
+        this.hits = hits;
+        this.misses = misses;
+        this.byteHits = byteHits;
+        this.byteMisses = byteMisses;
+        this.evictions = evictions;
+        this.promotions = promotions;
+        this.demotions = demotions;
+        this.loads = loads;
+        this.loadFailures = loadFailures;
+        this.loadNanos = loadNanos;
+        this.capacity = capacity;
+        this.resident = resident;
+        this.residentByTier = residentByTier;
+    }
+    
+    /**
+     * @return what happened between earlier and this snapshot
+     */
+    @NotNull
+    public MetricsSnapshot since(@NotNull MetricsSnapshot earlier){
+        return new MetricsSnapshot(time,
+                read.since(earlier.read), open.since(earlier.open),
+                getattr.since(earlier.getattr), readdir.since(earlier.readdir),
+                hits - earlier.hits, misses - earlier.misses,
+                byteHits - earlier.byteHits, byteMisses - earlier.byteMisses,
+                evictions - earlier.evictions, promotions - earlier.promotions, demotions - earlier.demotions,
+                loads - earlier.loads, loadFailures - earlier.loadFailures, loadNanos - earlier.loadNanos,
+                capacity, resident, residentByTier);
+    }
+    
+    /**
+     * @return {@link System#nanoTime()} when this was taken
+     */
+    public long getTime(){
+        return time;
+    }
+    
+    @NotNull
+    public HistogramSnapshot getRead(){
+        return read;
+    }
+    
+    @NotNull
+    public HistogramSnapshot getOpen(){
+        return open;
+    }
+    
+    @NotNull
+    public HistogramSnapshot getGetattr(){
+        return getattr;
+    }
+    
+    @NotNull
+    public HistogramSnapshot getReaddir(){
+        return readdir;
+    }
+    
+    public long getHits(){
+        return hits;
+    }
+    
+    public long getMisses(){
+        return misses;
+    }
+    
+    /**
+     * @return fraction of block lookups that hit, or NaN if there were none
+     */
+    public double getHitRatio(){
+        return hits / (double) (hits + misses);
+    }
+    
+    public long getByteHits(){
+        return byteHits;
+    }
+    
+    public long getByteMisses(){
+        return byteMisses;
+    }
+    
+    /**
+     * @return fraction of bytes read that were served from the cache, or NaN if nothing was read
+     */
+    public double getByteHitRatio(){
+        return byteHits / (double) (byteHits + byteMisses);
+    }
+    
+    public long getEvictions(){
+        return evictions;
+    }
+    
+    public long getPromotions(){
+        return promotions;
+    }
+    
+    public long getDemotions(){
+        return demotions;
+    }
+    
+    public long getLoads(){
+        return loads;
+    }
+    
+    public long getLoadFailures(){
+        return loadFailures;
+    }
+    
+    public double getMeanLoadNanos(){
+        long total = loads + loadFailures;
+        return total == 0 ? 0 : loadNanos / (double) total;
+    }
+    
+    public long getCapacity(){
+        return capacity;
+    }
+    
+    public long getResident(){
+        return resident;
+    }
+    
+    public long getResident(@NotNull CacheTier tier){
+        return residentByTier.getOrDefault(tier, 0L);
+    }
+    
+    @Override
+    public String toString(){
+        StringBuilder tiers = new StringBuilder();
+        for(CacheTier tier : CacheTier.values())
+            tiers.append(tier).append('=').append(getResident(tier)).append(' ');
+        return String.format("%d hits, %d misses (%.2f%% hit rate, %.2f%% byte hit rate), " +
+                        "%d evictions, %d promotions, %d demotions, %d loads (%.1fus avg), %d/%d bytes (%s)\n" +
+                        "  read: %s\n  open: %s\n  getattr: %s\n  readdir: %s",
+                hits, misses, nanToZero(getHitRatio()) * 100, nanToZero(getByteHitRatio()) * 100,
+                evictions, promotions, demotions, loads, getMeanLoadNanos() / 1_000D, resident, capacity,
+                tiers.toString().trim(), read, open, getattr, readdir);
+    }
+    
+    private static double nanToZero(double value){
+        return Double.isNaN(value) ? 0 : value;
+    }
+    
+}
@@ -0,0 +1,236 @@
+package academy.hekiyou.pudding.metrics;
+
+import academy.hekiyou.pudding.cache.CacheStats;
+import academy.hekiyou.pudding.cache.CacheTier;
+import academy.hekiyou.pudding.cache.TieredCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Process-wide metrics: latency of each FUSE call that matters, plus the block cache's {@link CacheStats} and
+ * residency. Everything that's recorded on the read path is a {@link LongAdder}, so no reader ever waits on another
+ * to record something.
+ *
+ * Metrics can be read through {@link #snapshot()}, handed out periodically through
+ * {@link #schedule(long, TimeUnit, BiConsumer)}, or exported over JMX under {@code academy.hekiyou.pudding}.
+ */
+public final class PuddingMetrics {
+    
+    private static final PuddingMetrics INSTANCE = new PuddingMetrics();
+    private static final String DOMAIN = "academy.hekiyou.pudding";
+    
+    private final LatencyHistogram read = new LatencyHistogram();
+    private final LatencyHistogram open = new LatencyHistogram();
+    private final LatencyHistogram getattr = new LatencyHistogram();
+    private final LatencyHistogram readdir = new LatencyHistogram();
+    private final LongAdder byteHits = new LongAdder();
+    private final LongAdder byteMisses = new LongAdder();
+    
+    @Nullable
+    private volatile TieredCache<?, ?> cache;
+    @Nullable
+    private ScheduledExecutorService scheduler;
+    
+    private PuddingMetrics(){}
+    
+    @NotNull
+    public static PuddingMetrics get(){
+        return INSTANCE;
+    }
+    
+    /**
+     * Sets the cache whose stats and residency are reported.
+     */
+    public void bind(@NotNull TieredCache<?, ?> cache){
+        this.cache = cache;
+    }
+    
+    @NotNull
+    public LatencyHistogram getRead(){
+        return read;
+    }
+    
+    @NotNull
+    public LatencyHistogram getOpen(){
+        return open;
+    }
+    
+    @NotNull
+    public LatencyHistogram getGetattr(){
+        return getattr;
+    }
+    
+    @NotNull
+    public LatencyHistogram getReaddir(){
+        return readdir;
+    }
+    
+    public void recordByteHit(long bytes){
+        byteHits.add(bytes);
+    }
+    
+    public void recordByteMiss(long bytes){
+        byteMisses.add(bytes);
+    }
+    
+    @NotNull
+    public MetricsSnapshot snapshot(){
+        TieredCache<?, ?> cache = this.cache;
+        CacheStats stats = cache != null ? cache.getStats() : new CacheStats();
+        Map<CacheTier, Long> tiers = new EnumMap<>(CacheTier.class);
+        if(cache != null){
+            for(CacheTier tier : CacheTier.values())
+                tiers.put(tier, cache.getWeight(tier));
+        }
+        
+        return new MetricsSnapshot(System.nanoTime(),
+                read.snapshot(), open.snapshot(), getattr.snapshot(), readdir.snapshot(),
+                stats.getHits(), stats.getMisses(), byteHits.sum(), byteMisses.sum(),
+                stats.getEvictions(), stats.getPromotions(), stats.getDemotions(),
+                stats.getLoads(), stats.getLoadFailures(), stats.getLoadNanos(),
+                cache != null ? cache.getCapacity() : 0, cache != null ? cache.getWeight() : 0, tiers);
+    }
+    
+    /**
+     * Hands listener a snapshot every period, on a daemon thread.
+     *
+     * @param listener Receives the totals since startup, then what happened since the previous call
+     */
+    @NotNull
+    public synchronized ScheduledFuture<?> schedule(long period, @NotNull TimeUnit unit,
+                                                    @NotNull BiConsumer<MetricsSnapshot, MetricsSnapshot> listener){
+        if(scheduler == null){
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pudding-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        
+        MetricsSnapshot[] previous = {snapshot()};
+        return scheduler.scheduleAtFixedRate(() -> {
+            MetricsSnapshot current = snapshot();
+            listener.accept(current, current.since(previous[0]));
+            previous[0] = current;
+        }, period, period, unit);
+    }
+    
+    /**
+     * Exports the cache and every latency histogram to the platform MBean server.
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new CacheView(), new ObjectName(DOMAIN + ":type=Cache"));
+        
+        Map<String, LatencyHistogram> ops = new LinkedHashMap<>();
+        ops.put("read", read);
+        ops.put("open", open);
+        ops.put("getattr", getattr);
+        ops.put("readdir", readdir);
+        for(Map.Entry<String, LatencyHistogram> op : ops.entrySet())
+            server.registerMBean(op.getValue(), new ObjectName(DOMAIN + ":type=Latency,op=" + op.getKey()));
+    }
+    
+    private class CacheView implements CacheMXBean {
+        
+        @Override
+        public long getHits(){
+            return stats().getHits();
+        }
+        
+        @Override
+        public long getMisses(){
+            return stats().getMisses();
+        }
+        
+        @Override
+        public double getHitRatio(){
+            return snapshot().getHitRatio();
+        }
+        
+        @Override
+        public long getByteHits(){
+            return byteHits.sum();
+        }
+        
+        @Override
+        public long getByteMisses(){
+            return byteMisses.sum();
+        }
+        
+        @Override
+        public double getByteHitRatio(){
+            return snapshot().getByteHitRatio();
+        }
+        
+        @Override
+        public long getEvictions(){
+            return stats().getEvictions();
+        }
+        
+        @Override
+        public long getPromotions(){
+            return stats().getPromotions();
+        }
+        
+        @Override
+        public long getDemotions(){
+            return stats().getDemotions();
+        }
+        
+        @Override
+        public long getLoads(){
+            return stats().getLoads();
+        }
+        
+        @Override
+        public long getLoadFailures(){
+            return stats().getLoadFailures();
+        }
+        
+        @Override
+        public double getMeanLoadMicros(){
+            return snapshot().getMeanLoadNanos() / 1_000D;
+        }
+        
+        @Override
+        public long getCapacityBytes(){
+            return snapshot().getCapacity();
+        }
+        
+        @Override
+        public long getResidentBytes(){
+            return snapshot().getResident();
+        }
+        
+        @Override
+        public Map<String, Long> getResidentBytesByTier(){
+            MetricsSnapshot snapshot = snapshot();
+            Map<String, Long> tiers = new LinkedHashMap<>();
+            for(CacheTier tier : CacheTier.values())
+                tiers.put(tier.name(), snapshot.getResident(tier));
+            return tiers;
+        }
+        
+        private CacheStats stats(){
+            TieredCache<?, ?> cache = PuddingMetrics.this.cache;
+            return cache != null ? cache.getStats() : new CacheStats();
+        }
+        
+    }
+    
+}
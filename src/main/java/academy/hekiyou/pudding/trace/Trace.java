@@ -0,0 +1,145 @@
+package academy.hekiyou.pudding.trace;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * A trace written by {@link TraceRecorder}, loaded into flat arrays and sorted by time.
+ */
+public class Trace {
+    
+    // files by id
+    final String[] names;
+    final long[] fileSizes;
+    
+    // events, i.e ops[i], times[i], files[i]... describe the i-th event
+    final int length;
+    final byte[] ops;
+    final long[] times;
+    final int[] files;
+    final long[] offsets;
+    final int[] sizes;
+    
+    private Trace(String[] names, long[] fileSizes, int length, byte[] ops, long[] times, int[] files,
+                  long[] offsets, int[] sizes){
+        this.names = names;
+        this.fileSizes = fileSizes;
+        this.length = length;
+        this.ops = ops;
+        this.times = times;
+        this.files = files;
+        this.offsets = offsets;
+        this.sizes = sizes;
+    }
+    
+    @NotNull
+    public static Trace load(@NotNull Path source) throws IOException {
+        String[] names = new String[64];
+        long[] fileSizes = new long[64];
+        int fileCount = 0;
+        
+        long estimate = Files.size(source) / TraceRecorder.EVENT_BYTES;
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, estimate));
+        byte[] ops = new byte[capacity];
+        long[] times = new long[capacity];
+        int[] files = new int[capacity];
+        long[] offsets = new long[capacity];
+        int[] sizes = new int[capacity];
+        int length = 0;
+        
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source), 1 << 16))){
+            if(in.readInt() != TraceRecorder.MAGIC)
+                throw new IOException(source + " isn't a trace");
+            if(in.readInt() != TraceRecorder.VERSION)
+                throw new IOException(source + " was recorded by an incompatible version");
+            in.readLong(); // start time, only of interest to humans
+            
+            int op;
+            while((op = in.read()) >= 0){
+                if(op == TraceRecorder.PATH){
+                    int id = in.readInt();
+                    long size = in.readLong();
+                    byte[] name = new byte[in.readInt()];
+                    in.readFully(name);
+                    if(id != fileCount)
+                        throw new IOException(source + " is corrupt: expected file #" + fileCount + ", got #" + id);
+                    if(fileCount == names.length){
+                        names = Arrays.copyOf(names, fileCount * 2);
+                        fileSizes = Arrays.copyOf(fileSizes, fileCount * 2);
+                    }
+                    names[fileCount] = new String(name, StandardCharsets.UTF_8);
+                    fileSizes[fileCount++] = size;
+                } else if(op == TraceRecorder.OPEN || op == TraceRecorder.READ){
+                    // the capacity estimate is exact unless files were defined, so this is rare
+                    if(length == ops.length){
+                        ops = Arrays.copyOf(ops, length * 2);
+                        times = Arrays.copyOf(times, length * 2);
+                        files = Arrays.copyOf(files, length * 2);
+                        offsets = Arrays.copyOf(offsets, length * 2);
+                        sizes = Arrays.copyOf(sizes, length * 2);
+                    }
+                    ops[length] = (byte) op;
+                    times[length] = in.readLong();
+                    files[length] = in.readInt();
+                    offsets[length] = in.readLong();
+                    sizes[length] = in.readInt();
+                    if(files[length] < 0 || files[length] >= fileCount)
+                        throw new IOException(source + " is corrupt: unknown file #" + files[length]);
+                    length++;
+                } else {
+                    throw new IOException(source + " is corrupt: unknown record " + op);
+                }
+            }
+        } catch(EOFException exc){
+            // the last record was cut short (i.e the recorder was killed); keep everything before it
+        }
+        
+        // threads write their events out in batches, so put them back in the order they happened
+        long[] unsortedTimes = times;
+        int[] order = IntStream.range(0, length)
+                .boxed()
+                .sorted(Comparator.comparingLong(i -> unsortedTimes[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        return new Trace(Arrays.copyOf(names, fileCount), Arrays.copyOf(fileSizes, fileCount), length,
+                permute(ops, order), permute(times, order), permute(files, order), permute(offsets, order),
+                permute(sizes, order));
+    }
+    
+    public int getLength(){
+        return length;
+    }
+    
+    public int getFileCount(){
+        return names.length;
+    }
+    
+    private static byte[] permute(byte[] values, int[] order){
+        byte[] sorted = new byte[order.length];
+        for(int i = 0; i < order.length; i++)
+            sorted[i] = values[order[i]];
+        return sorted;
+    }
+    
+    private static long[] permute(long[] values, int[] order){
+        long[] sorted = new long[order.length];
+        for(int i = 0; i < order.length; i++)
+            sorted[i] = values[order[i]];
+        return sorted;
+    }
+    
+    private static int[] permute(int[] values, int[] order){
+        int[] sorted = new int[order.length];
+        for(int i = 0; i < order.length; i++)
+            sorted[i] = values[order[i]];
+        return sorted;
+    }
+    
+}
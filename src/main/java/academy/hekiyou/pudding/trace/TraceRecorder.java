@@ -0,0 +1,163 @@
+package academy.hekiyou.pudding.trace;
+
+import academy.hekiyou.pudding.fs.PuddingFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the file system calls that matter to the cache into a compact binary trace, for {@link TraceSimulator} to
+ * replay later.
+ *
+ * A trace is a header (magic, version, wall clock time of the start) followed by records that each start with an
+ * opcode. Files are written out once, as a {@link #PATH} record assigning them an id, the first time they're seen;
+ * every other record is a fixed {@link #EVENT_BYTES} bytes: opcode, nanoseconds since the start, file id, offset and
+ * size. Each thread appends events to a buffer of its own which is only written out once full, so the events in a
+ * trace are in order per thread, but not overall.
+ */
+public class TraceRecorder implements Closeable {
+    
+    static final int MAGIC = 0x50554454; // "PUDT"
+    static final int VERSION = 1;
+    
+    static final byte PATH = 0;
+    static final byte OPEN = 1;
+    static final byte READ = 2;
+    
+    static final int EVENT_BYTES = 1 + 8 + 4 + 8 + 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final FileChannel channel;
+    private final long start = System.nanoTime();
+    
+    private final ConcurrentMap<PuddingFile, Integer> ids = new ConcurrentHashMap<>();
+    // every thread's buffer, so they can all be written out on close; guarded by this
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final ThreadLocal<ByteBuffer> buffer = ThreadLocal.withInitial(this::newBuffer);
+    private volatile boolean closed;
+    
+    public TraceRecorder(@NotNull Path target) throws IOException {
+        this.channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).flip();
+        writeFully(header);
+    }
+    
+    public void open(@NotNull PuddingFile file){
+        record(OPEN, file, 0, 0);
+    }
+    
+    public void read(@NotNull PuddingFile file, long offset, long size){
+        record(READ, file, offset, size);
+    }
+    
+    /**
+     * Writes out everything recorded so far and stops recording. Threads must have stopped recording by now, i.e
+     * the file system has been unmounted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(!channel.isOpen())
+            return;
+        
+        // nothing more should be written if recording already stopped because of an error
+        boolean flush = !closed;
+        closed = true;
+        try {
+            if(flush){
+                for(ByteBuffer pending : buffers)
+                    flush(pending);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+    
+    private void record(byte op, @NotNull PuddingFile file, long offset, long size){
+        if(closed)
+            return;
+        
+        long time = System.nanoTime() - start;
+        int id = idOf(file);
+        ByteBuffer events = buffer.get();
+        if(events.remaining() < EVENT_BYTES){
+            synchronized(this){
+                if(closed)
+                    return;
+                flushOrStop(events);
+            }
+        }
+        events.put(op).putLong(time).putInt(id).putLong(offset).putInt((int) Math.min(size, Integer.MAX_VALUE));
+    }
+    
+    private int idOf(@NotNull PuddingFile file){
+        Integer id = ids.get(file);
+        if(id != null)
+            return id;
+        
+        synchronized(this){
+            id = ids.get(file);
+            if(id == null){
+                id = ids.size();
+                // written straight away, so it lands ahead of any buffered event that refers to it
+                byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer definition = ByteBuffer.allocate(1 + 4 + 8 + 4 + name.length);
+                definition.put(PATH).putInt(id).putLong(file.getSize()).putInt(name.length).put(name).flip();
+                if(!closed){
+                    try {
+                        writeFully(definition);
+                    } catch(IOException exc){
+                        stop(exc);
+                    }
+                }
+                ids.put(file, id);
+            }
+        }
+        return id;
+    }
+    
+    @NotNull
+    private synchronized ByteBuffer newBuffer(){
+        ByteBuffer events = ByteBuffer.allocate(BUFFER_SIZE);
+        buffers.add(events);
+        return events;
+    }
+    
+    private void flushOrStop(@NotNull ByteBuffer events){
+        try {
+            flush(events);
+        } catch(IOException exc){
+            stop(exc);
+            events.clear();
+        }
+    }
+    
+    private void flush(@NotNull ByteBuffer events) throws IOException {
+        events.flip();
+        writeFully(events);
+        events.clear();
+    }
+    
+    private void writeFully(@NotNull ByteBuffer data) throws IOException {
+        while(data.hasRemaining())
+            channel.write(data);
+    }
+    
+    private void stop(@NotNull IOException cause){
+        System.out.println("Failed to write trace, no longer recording: " + cause);
+        closed = true;
+    }
+    
+}
@@ -0,0 +1,219 @@
+package academy.hekiyou.pudding.trace;
+
+import academy.hekiyou.pudding.cache.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Replays a trace recorded by {@link TraceRecorder} through a {@link TieredCache} the way PuddingFile drives it, for
+ * every combination of eviction policy and capacity asked for, and reports how each would have fared.
+ *
+ * Usage: {@code TraceSimulator <trace> [policy,...] [capacity,...]}, where policies are any of tiered, tiered-simple
+ * and tinylfu (default: all) and capacities are in bytes, optionally suffixed with k, m or g (default: 1% to 100% of
+ * the trace's footprint). Blocks are sized like PuddingFile's, i.e by -Dpudding.block.size.
+ *
+ * The trace is first flattened into block accesses with every key boxed ahead of time, so the replay loop itself
+ * allocates nothing; whatever is allocated during a run is down to the cache.
+ */
+public class TraceSimulator {
+    
+    private static final int BLOCK_SIZE = Integer.getInteger("pudding.block.size", 256 * 1024);
+    private static final double[] DEFAULT_SWEEP = {0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1};
+    
+    // distinct blocks, by dense id
+    private final Long[] keys;
+    private final Integer[] weights;
+    private final long footprint;
+    
+    // accesses: the block touched and how many bytes of it were asked for, or -1 for an open
+    private final int[] accessBlocks;
+    private final int[] accessBytes;
+    
+    public TraceSimulator(@NotNull Trace trace, int blockSize){
+        Map<Long, Integer> ids = new HashMap<>();
+        int[] blocks = new int[trace.length];
+        int[] bytes = new int[trace.length];
+        int accesses = 0;
+        
+        for(int i = 0; i < trace.length; i++){
+            int file = trace.files[i];
+            long offset = trace.offsets[i];
+            long end = Math.min(trace.fileSizes[file], offset + trace.sizes[i]);
+            if(trace.ops[i] == TraceRecorder.OPEN){
+                // open() touches the first block
+                offset = 0;
+                end = 1;
+            } else if(offset >= end){
+                continue;
+            }
+            
+            for(long index = offset / blockSize; index * blockSize < end; index++){
+                if(accesses == blocks.length){
+                    blocks = Arrays.copyOf(blocks, accesses * 2);
+                    bytes = Arrays.copyOf(bytes, accesses * 2);
+                }
+                
+                long blockStart = index * blockSize;
+                Integer id = ids.computeIfAbsent(((long) file << 32) | index, key -> ids.size());
+                blocks[accesses] = id;
+                bytes[accesses] = trace.ops[i] == TraceRecorder.OPEN ? -1 :
+                        (int) (Math.min(end, blockStart + blockSize) - Math.max(offset, blockStart));
+                accesses++;
+            }
+        }
+        
+        this.keys = new Long[ids.size()];
+        this.weights = new Integer[ids.size()];
+        long total = 0;
+        for(Map.Entry<Long, Integer> entry : ids.entrySet()){
+            long key = entry.getKey();
+            int file = (int) (key >>> 32);
+            long index = key & 0xFFFFFFFFL;
+            int weight = (int) Math.max(1, Math.min(blockSize, trace.fileSizes[file] - index * blockSize));
+            keys[entry.getValue()] = key;
+            weights[entry.getValue()] = weight;
+            total += weight;
+        }
+        this.footprint = total;
+        this.accessBlocks = Arrays.copyOf(blocks, accesses);
+        this.accessBytes = Arrays.copyOf(bytes, accesses);
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: TraceSimulator <trace> [policy,...] [capacity,...]");
+            return;
+        }
+        
+        long start = System.nanoTime();
+        Trace trace = Trace.load(Paths.get(args[0]));
+        TraceSimulator simulator = new TraceSimulator(trace, BLOCK_SIZE);
+        System.out.printf("Loaded %d events over %d files in %d ms: %d block accesses, %d distinct blocks (%d bytes)\n",
+                trace.getLength(), trace.getFileCount(), (System.nanoTime() - start) / 1_000_000,
+                simulator.accessBlocks.length, simulator.keys.length, simulator.footprint);
+        
+        String[] policies = args.length > 1 ? args[1].split(",") : new String[]{"tiered", "tiered-simple", "tinylfu"};
+        long[] capacities;
+        if(args.length > 2){
+            String[] sizes = args[2].split(",");
+            capacities = new long[sizes.length];
+            for(int i = 0; i < sizes.length; i++)
+                capacities[i] = parseBytes(sizes[i]);
+        } else {
+            capacities = new long[DEFAULT_SWEEP.length];
+            for(int i = 0; i < DEFAULT_SWEEP.length; i++)
+                capacities[i] = Math.max(BLOCK_SIZE, (long) (simulator.footprint * DEFAULT_SWEEP[i]));
+        }
+        
+        System.out.printf("%-14s %14s %10s %10s %12s %10s\n",
+                "policy", "capacity", "hit", "byte hit", "evictions", "ms");
+        for(String policy : policies){
+            for(long capacity : capacities){
+                Result result = simulator.run(policyFor(policy), capacity);
+                System.out.printf("%-14s %14d %9.2f%% %9.2f%% %12d %10d\n", policy, capacity,
+                        result.hits * 100D / Math.max(1, result.hits + result.misses),
+                        result.hitBytes * 100D / Math.max(1, result.hitBytes + result.missBytes),
+                        result.evictions, result.nanos / 1_000_000);
+            }
+        }
+    }
+    
+    /**
+     * Replays every access through a fresh cache.
+     */
+    @NotNull
+    public Result run(@NotNull LongFunction<EvictionPolicy<Long, Integer>> policy, long capacity){
+        SimulatedCache cache = new SimulatedCache(capacity, policy);
+        Result result = new Result();
+        cache.setEvictionListener(key -> result.evictions++);
+        
+        long start = System.nanoTime();
+        for(int i = 0; i < accessBlocks.length; i++){
+            int block = accessBlocks[i];
+            int bytes = accessBytes[i];
+            Long key = keys[block];
+            if(cache.get(key) != null){
+                if(bytes >= 0){
+                    result.hits++;
+                    result.hitBytes += bytes;
+                }
+            } else {
+                if(bytes >= 0){
+                    result.misses++;
+                    result.missBytes += bytes;
+                }
+                // opens prefetch the block they touch, reads load it; either way it's inserted if it fits at all
+                Integer weight = weights[block];
+                if(weight <= capacity)
+                    cache.put(key, weight);
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+    
+    @NotNull
+    private static LongFunction<EvictionPolicy<Long, Integer>> policyFor(@NotNull String name){
+        switch(name){
+            case "tiered":        return cap -> new TieredPolicy<>(cap, FrequencyBucketList::new);
+            case "tiered-simple": return TieredPolicy::new;
+            case "tinylfu":       return WindowTinyLfuPolicy::new;
+            default:              throw new IllegalArgumentException("Unknown policy " + name);
+        }
+    }
+    
+    private static long parseBytes(@NotNull String value){
+        value = value.trim().toLowerCase();
+        int shift = 0;
+        switch(value.charAt(value.length() - 1)){
+            case 'k': shift = 10; break;
+            case 'm': shift = 20; break;
+            case 'g': shift = 30; break;
+        }
+        if(shift != 0)
+            value = value.substring(0, value.length() - 1);
+        return Long.parseLong(value) << shift;
+    }
+    
+    public static class Result {
+        
+        public long hits, misses;
+        public long hitBytes, missBytes;
+        public long evictions;
+        public long nanos;
+        
+    }
+    
+    /**
+     * Holds each block's weight as its value, so weighing it costs nothing.
+     */
+    private static class SimulatedCache extends TieredCache<Long, Integer> {
+        
+        SimulatedCache(long capacity, @NotNull LongFunction<EvictionPolicy<Long, Integer>> policy){
+            super(capacity, policy);
+        }
+        
+        @Override
+        protected long weigh(@NotNull Long key, @NotNull Integer value){
+            return value;
+        }
+        
+        @Override
+        public @NotNull CacheEntry<Long, Integer> makeEntry(Long key, Integer value){
+            return new CacheEntry<Long, Integer>(key, value) {
+                
+                @Override
+                public void clean(){}
+                
+            };
+        }
+        
+    }
+    
+}
@@ -0,0 +1,18 @@
+package academy.hekiyou.pudding;
+
+/**
+ * Assertions shared by the main()-style tests, which fail by throwing rather than through a test framework.
+ */
+public final class Checks {
+    
+    private Checks(){}
+    
+    /**
+     * @param what What was being done, to finish "Expected ... when"
+     */
+    public static void expect(long actual, long expected, String what){
+        if(actual != expected)
+            throw new IllegalStateException("Expected " + expected + " when " + what + ", got " + actual);
+    }
+    
+}
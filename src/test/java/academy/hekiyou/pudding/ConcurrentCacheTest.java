@@ -0,0 +1,43 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.ConcurrentTieredCache;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ConcurrentCacheTest {
+    
+    private static final int CACHE_SIZE = 1_000;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 1_000_000;
+    
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentTieredCache<Integer, Object> cache = SimpleCacheEntry.concurrentCache(CACHE_SIZE);
+        
+        Thread[] threads = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++){
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for(int op = 0; op < OPERATIONS; op++){
+                    int key = random.nextInt(CACHE_SIZE * 2);
+                    if(cache.get(key) == null){
+                        try {
+                            cache.put(key, new Object());
+                        } catch(IllegalStateException ignored){
+                            // another thread inserted it first
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        
+        for(Thread thread : threads)
+            thread.join();
+        
+        cache.printStats();
+        if(cache.size() != cache.getWeight() || cache.getWeight() > CACHE_SIZE)
+            throw new IllegalStateException("size=" + cache.size() + ", weight=" + cache.getWeight());
+        System.out.println("OK: size=" + cache.size());
+    }
+    
+}
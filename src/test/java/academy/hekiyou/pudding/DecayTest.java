@@ -0,0 +1,51 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
+import academy.hekiyou.pudding.cache.TieredCache;
+import academy.hekiyou.pudding.cache.TieredPolicy;
+
+import java.util.Random;
+
+/**
+ * A hot set that goes cold should lose its CONSTANTLY slots to the next hot set once frequencies decay.
+ */
+public class DecayTest {
+    
+    private static final int CACHE_SIZE = 100;
+    private static final int HOT_KEYS = 20;
+    private static final int DECAY_INTERVAL = 1_000;
+    
+    public static void main(String[] args){
+        TieredCache<Integer, Object> cache = SimpleCacheEntry.cache(CACHE_SIZE,
+                cap -> new TieredPolicy<>(cap, FrequencyBucketList::new, DECAY_INTERVAL));
+        
+        Random random = new Random(0);
+        // first event: keys [0, 20) are hot for a long time
+        for(int i = 0; i < 100_000; i++)
+            access(cache, random.nextInt(HOT_KEYS));
+        
+        // second event: keys [1000, 1020) are hot, but for a much shorter time, mixed with one-off keys
+        for(int i = 0; i < 20_000; i++){
+            access(cache, 1_000 + random.nextInt(HOT_KEYS));
+            access(cache, 10_000 + i);
+        }
+        
+        cache.printStats();
+        
+        int oldKept = 0, newKept = 0;
+        for(int key = 0; key < HOT_KEYS; key++){
+            if(cache.contains(key)) oldKept++;
+            if(cache.contains(1_000 + key)) newKept++;
+        }
+        
+        System.out.printf("old hot set: %d/%d cached, new hot set: %d/%d cached\n", oldKept, HOT_KEYS, newKept, HOT_KEYS);
+        if(oldKept > 0 || newKept < HOT_KEYS)
+            throw new IllegalStateException("stale entries were not demoted");
+    }
+    
+    private static void access(TieredCache<Integer, Object> cache, int key){
+        if(cache.get(key) == null)
+            cache.put(key, new Object());
+    }
+    
+}
@@ -0,0 +1,68 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.CacheEntry;
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
+import academy.hekiyou.pudding.cache.StructuredList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FrequencyBucketListTest {
+    
+    private static final int ELEMENTS = 1_000;
+    private static final int OPERATIONS = 1_000_000;
+    
+    public static void main(String[] args){
+        StructuredList<CacheEntry<Integer, Object>> list = new FrequencyBucketList<>(ELEMENTS);
+        List<CacheEntry<Integer, Object>> present = new ArrayList<>();
+        Random random = new Random(0);
+        int nextKey = 0;
+        
+        for(int op = 0; op < OPERATIONS; op++){
+            double roll = random.nextDouble();
+            if(present.isEmpty() || (roll < 0.1 && present.size() < ELEMENTS)){
+                CacheEntry<Integer, Object> entry = new SimpleCacheEntry(nextKey++, new Object());
+                list.add(entry);
+                present.add(entry);
+            } else if(roll < 0.15){
+                CacheEntry<Integer, Object> lowest = list.popLowest();
+                if(!present.remove(lowest))
+                    throw new IllegalStateException("popped unknown entry " + lowest);
+            } else {
+                // skew accesses towards a few hot entries so buckets both merge and split
+                int idx = random.nextBoolean() ? random.nextInt(Math.min(10, present.size())) : random.nextInt(present.size());
+                CacheEntry<Integer, Object> entry = present.get(idx);
+                entry.incrementFreq();
+                list.restructure(entry);
+            }
+            
+            if(op % 1_000 == 0)
+                verify(list, present.size());
+        }
+        
+        verify(list, present.size());
+        StructuredList.printList(list);
+        System.out.println("OK");
+    }
+    
+    private static void verify(StructuredList<CacheEntry<Integer, Object>> list, int expectedSize){
+        if(list.size() != expectedSize)
+            throw new IllegalStateException("size " + list.size() + " != " + expectedSize);
+        
+        CacheEntry<Integer, Object> previous = null;
+        int seen = 0;
+        for(CacheEntry<Integer, Object> entry : list){
+            if(previous != null && previous.compareTo(entry) > 0)
+                throw new IllegalStateException(previous + " sorted before " + entry);
+            previous = entry;
+            seen++;
+        }
+        
+        if(seen != expectedSize)
+            throw new IllegalStateException("iterated " + seen + " != " + expectedSize);
+        if(expectedSize > 0 && (list.getLowest().compareTo(list.getHighest()) > 0 || previous != list.getHighest()))
+            throw new IllegalStateException("bad ends: " + list);
+    }
+    
+}
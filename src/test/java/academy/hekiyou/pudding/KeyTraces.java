@@ -0,0 +1,77 @@
+package academy.hekiyou.pudding;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic access patterns for benchmarking caches, generated up front so that producing keys doesn't show up in
+ * the measurements.
+ */
+public final class KeyTraces {
+    
+    private KeyTraces(){}
+    
+    /**
+     * @param name One of "zipf", "scan" or "loop"
+     */
+    public static int[] generate(String name, int keys, int length, long seed){
+        switch(name){
+            case "zipf": return zipf(keys, 0.99, length, seed);
+            case "scan": return scan(keys, length, seed);
+            case "loop": return loop(keys, length);
+            default:     throw new IllegalArgumentException("Unknown trace " + name);
+        }
+    }
+    
+    /**
+     * Skewed popularity, the rank-k key being accessed in proportion to 1/k^skew; what a game's assets mostly look
+     * like.
+     */
+    public static int[] zipf(int keys, double skew, int length, long seed){
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for(int rank = 0; rank < keys; rank++){
+            sum += 1 / Math.pow(rank + 1, skew);
+            cumulative[rank] = sum;
+        }
+        
+        Random random = new Random(seed);
+        int[] trace = new int[length];
+        for(int i = 0; i < length; i++){
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = rank < 0 ? -rank - 1 : rank;
+        }
+        return trace;
+    }
+    
+    /**
+     * A Zipfian hot set over the first tenth of the keys, interleaved with a one-off sequential sweep of the rest,
+     * like a loading screen pulling in a whole zone.
+     */
+    public static int[] scan(int keys, int length, long seed){
+        int hot = Math.max(1, keys / 10);
+        int[] popular = zipf(hot, 0.99, length, seed);
+        int[] trace = new int[length];
+        int next = hot;
+        for(int i = 0; i < length; i++){
+            if(i % 2 == 0){
+                trace[i] = popular[i];
+            } else {
+                trace[i] = next;
+                next = next + 1 < keys ? next + 1 : hot;
+            }
+        }
+        return trace;
+    }
+    
+    /**
+     * Every key in turn, over and over; defeats LRU once the loop is larger than the cache.
+     */
+    public static int[] loop(int keys, int length){
+        int[] trace = new int[length];
+        for(int i = 0; i < length; i++)
+            trace[i] = i % keys;
+        return trace;
+    }
+    
+}
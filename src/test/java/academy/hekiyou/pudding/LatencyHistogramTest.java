@@ -0,0 +1,37 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.metrics.HistogramSnapshot;
+import academy.hekiyou.pudding.metrics.LatencyHistogram;
+
+public class LatencyHistogramTest {
+    
+    // buckets are 1/8th of a power of two wide
+    private static final double PRECISION = 0.125;
+    
+    public static void main(String[] args){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long micros = 1; micros <= 100_000; micros++)
+            histogram.record(micros * 1_000);
+        
+        HistogramSnapshot snapshot = histogram.snapshot();
+        check("p50", snapshot.getPercentile(50), 50_000_000);
+        check("p99", snapshot.getPercentile(99), 99_000_000);
+        check("max", snapshot.getMax(), 100_000_000);
+        check("mean", (long) snapshot.getMean(), 50_000_500);
+        
+        // a delta only holds what came after the earlier snapshot
+        for(int i = 0; i < 1_000; i++)
+            histogram.record(5);
+        HistogramSnapshot delta = histogram.snapshot().since(snapshot);
+        if(delta.getCount() != 1_000 || delta.getPercentile(99) != 5)
+            throw new IllegalStateException("Bad delta: " + delta);
+        System.out.println("OK: " + snapshot);
+    }
+    
+    private static void check(String name, long actual, long expected){
+        if(Math.abs(actual - expected) > expected * PRECISION)
+            throw new IllegalStateException(name + " was " + actual + ", expected about " + expected);
+        System.out.println(name + ": " + actual + " (expected " + expected + ")");
+    }
+    
+}
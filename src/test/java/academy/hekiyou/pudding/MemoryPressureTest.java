@@ -0,0 +1,95 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.CacheEntry;
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
+import academy.hekiyou.pudding.cache.MemoryPressureController;
+import academy.hekiyou.pudding.cache.TieredCache;
+import academy.hekiyou.pudding.cache.TieredPolicy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cache should shrink under memory pressure by a share of its size, keeping its hot entries, give each shrink time
+ * to take effect (and the cache time to release what it gave up), and only grow back once memory has been plentiful
+ * for a while.
+ */
+public class MemoryPressureTest {
+    
+    private static final int CACHE_SIZE = 100;
+    private static final int HOT_KEYS = 10;
+    private static final long LOW = 100, HIGH = 110;
+    private static final long SHRINK_DELAY = 100;
+    private static final long GROW_DELAY = 1_000;
+    
+    public static void main(String[] args){
+        AtomicBoolean releasing = new AtomicBoolean();
+        TieredCache<Integer, Object> cache = new TieredCache<Integer, Object>(CACHE_SIZE,
+                cap -> new TieredPolicy<>(cap, FrequencyBucketList::new)) {
+            
+            @Override
+            public @NotNull CacheEntry<Integer, Object> makeEntry(Integer key, Object value){
+                return new SimpleCacheEntry(key, value);
+            }
+            
+            // like a cache whose entries were still being read when it shrank
+            @Override
+            public boolean releaseMemory(){
+                return releasing.get();
+            }
+            
+        };
+        for(int key = 0; key < CACHE_SIZE; key++)
+            cache.put(key, new Object());
+        for(int i = 0; i < 50; i++){
+            for(int key = 0; key < HOT_KEYS; key++)
+                cache.get(key);
+        }
+        
+        AtomicLong available = new AtomicLong(200);
+        MemoryPressureController controller = new MemoryPressureController(cache, 20, LOW, HIGH, SHRINK_DELAY,
+                GROW_DELAY, available::get);
+        
+        Checks.expect(controller.sample(0), CACHE_SIZE, "nothing to do with plenty of memory");
+        
+        available.set(LOW - 1);
+        long capacity = CACHE_SIZE - step(CACHE_SIZE);
+        Checks.expect(controller.sample(1), capacity, "a small dip costing a single step");
+        available.set(LOW - 30);
+        Checks.expect(controller.sample(2), capacity, "holding off while the last shrink takes effect");
+        capacity -= 30;
+        Checks.expect(controller.sample(1 + SHRINK_DELAY), capacity, "shrinking by the shortfall");
+        if(cache.getWeight() > capacity)
+            throw new IllegalStateException("Cache still weighs " + cache.getWeight());
+        for(int key = 0; key < HOT_KEYS; key++){
+            if(!cache.contains(key))
+                throw new IllegalStateException("Hot key " + key + " was evicted before cold ones");
+        }
+        
+        available.set(0);
+        releasing.set(true);
+        Checks.expect(controller.sample(1 + 2 * SHRINK_DELAY), capacity, "holding off while the cache releases memory");
+        releasing.set(false);
+        capacity -= MemoryPressureController.MAX_SHRINK_STEPS * step(capacity);
+        Checks.expect(controller.sample(2 + 2 * SHRINK_DELAY), capacity, "shrinking by no more than the step limit");
+        Checks.expect(controller.sample(2 + 3 * SHRINK_DELAY), 20, "shrinking no further than the minimum");
+        long lastShrink = 2 + 3 * SHRINK_DELAY;
+        
+        available.set(105);
+        Checks.expect(controller.sample(GROW_DELAY * 10), 20, "holding between the watermarks");
+        
+        available.set(200);
+        Checks.expect(controller.sample(GROW_DELAY), 20, "holding during the grow delay");
+        Checks.expect(controller.sample(lastShrink + GROW_DELAY), 20 + step(20), "growing a step after the delay");
+        for(int i = 0; i < 100; i++)
+            capacity = controller.sample(lastShrink + GROW_DELAY + 1 + i);
+        Checks.expect(capacity, CACHE_SIZE, "growing no further than the original capacity");
+        System.out.println("OK: cache resized with memory pressure");
+    }
+    
+    private static long step(long capacity){
+        return (long) (capacity * MemoryPressureController.STEP_SHARE);
+    }
+    
+}
@@ -0,0 +1,63 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.CacheEntry;
+import academy.hekiyou.pudding.cache.TieredCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PinningTest {
+    
+    public static void main(String[] args){
+        AtomicInteger cleaned = new AtomicInteger();
+        TieredCache<Integer, Object> cache = new TieredCache<Integer, Object>(1) {
+            
+            @Override
+            public @NotNull CacheEntry<Integer, Object> makeEntry(Integer key, Object value){
+                return new CacheEntry<Integer, Object>(key, value) {
+                    
+                    @Override
+                    protected void clean(){
+                        cleaned.incrementAndGet();
+                    }
+                    
+                };
+            }
+            
+        };
+        
+        // a reader pins the only entry, then a put evicts it from under them
+        cache.put(1, new Object());
+        CacheEntry<Integer, Object> pinned = entryOf(cache, 1);
+        if(!pinned.pin())
+            throw new IllegalStateException("Couldn't pin a cached entry");
+        cache.put(2, new Object());
+        
+        if(!pinned.isRetired() || cleaned.get() != 0)
+            throw new IllegalStateException("Evicted entry was cleaned while pinned");
+        if(pinned.pin())
+            throw new IllegalStateException("Retired entry was pinned again");
+        pinned.unpin();
+        if(cleaned.get() != 1)
+            throw new IllegalStateException("Entry wasn't cleaned once unpinned");
+        
+        // without pins eviction cleans right away, and only once
+        CacheEntry<Integer, Object> unpinned = entryOf(cache, 2);
+        cache.put(3, new Object());
+        unpinned.retire();
+        if(cleaned.get() != 2)
+            throw new IllegalStateException("Expected 2 cleans, got " + cleaned.get());
+        System.out.println("OK: cleaning deferred until the last pin was released");
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static CacheEntry<Integer, Object> entryOf(TieredCache<Integer, Object> cache, int key){
+        CacheEntry<Integer, Object>[] found = new CacheEntry[1];
+        cache.forEachEntry(entry -> {
+            if(entry.getKey() == key)
+                found[0] = entry;
+        });
+        return found[0];
+    }
+    
+}
@@ -0,0 +1,121 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.fs.PuddingFile;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PuddingFile#read(Pointer, long, long)} the way FUSE calls it, against temp files: once with the
+ * whole file cached, and once with a file eight times the size of the cache so that nearly every read misses.
+ *
+ * The block cache is static, so each path gets a JVM configured for it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PuddingFileReadBenchmark {
+    
+    // what FUSE typically asks for at once
+    private static final int READ_SIZE = 128 * 1024;
+    private static final int HIT_FILE_SIZE = 16 * 1024 * 1024;
+    private static final int MISS_FILE_SIZE = 64 * 1024 * 1024;
+    
+    @State(Scope.Benchmark)
+    public static class HotFile {
+        
+        private Path path;
+        private PuddingFile file;
+        
+        @Setup(Level.Trial)
+        public void doSetup() throws IOException {
+            path = createFile(HIT_FILE_SIZE);
+            file = new PuddingFile(path);
+            
+            // pull the whole file into the cache up front
+            Pointer buffer = Pointer.wrap(Runtime.getSystemRuntime(), ByteBuffer.allocateDirect(READ_SIZE));
+            for(long offset = 0; offset < HIT_FILE_SIZE; offset += READ_SIZE)
+                file.read(buffer, READ_SIZE, offset);
+        }
+        
+        @TearDown(Level.Trial)
+        public void doTearDown() throws IOException {
+            Files.deleteIfExists(path);
+        }
+        
+    }
+    
+    @State(Scope.Benchmark)
+    public static class ColdFile {
+        
+        private Path path;
+        private PuddingFile file;
+        
+        @Setup(Level.Trial)
+        public void doSetup() throws IOException {
+            path = createFile(MISS_FILE_SIZE);
+            file = new PuddingFile(path);
+        }
+        
+        @TearDown(Level.Trial)
+        public void doTearDown() throws IOException {
+            Files.deleteIfExists(path);
+        }
+        
+    }
+    
+    @State(Scope.Thread)
+    public static class Reader {
+        
+        private final Pointer buffer = Pointer.wrap(Runtime.getSystemRuntime(), ByteBuffer.allocateDirect(READ_SIZE));
+        
+        long randomOffset(int fileSize){
+            // unaligned on purpose so that reads straddle blocks
+            return ThreadLocalRandom.current().nextInt(fileSize - READ_SIZE);
+        }
+        
+    }
+    
+    private static Path createFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(0).nextBytes(data);
+        Path path = Files.createTempFile("pudding-bench", null);
+        return Files.write(path, data);
+    }
+    
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dpudding.cache.bytes=67108864"})
+    public int readHit(HotFile hot, Reader reader){
+        return hot.file.read(reader.buffer, READ_SIZE, reader.randomOffset(HIT_FILE_SIZE));
+    }
+    
+    @Benchmark
+    @Threads(4)
+    @Fork(value = 1, jvmArgsAppend = {"-Dpudding.cache.bytes=67108864"})
+    public int readHit4(HotFile hot, Reader reader){
+        return hot.file.read(reader.buffer, READ_SIZE, reader.randomOffset(HIT_FILE_SIZE));
+    }
+    
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dpudding.cache.bytes=8388608", "-Dpudding.prefetch.readAhead=0"})
+    public int readMiss(ColdFile cold, Reader reader){
+        return cold.file.read(reader.buffer, READ_SIZE, reader.randomOffset(MISS_FILE_SIZE));
+    }
+    
+    @Benchmark
+    @Threads(4)
+    @Fork(value = 1, jvmArgsAppend = {"-Dpudding.cache.bytes=8388608", "-Dpudding.prefetch.readAhead=0"})
+    public int readMiss4(ColdFile cold, Reader reader){
+        return cold.file.read(reader.buffer, READ_SIZE, reader.randomOffset(MISS_FILE_SIZE));
+    }
+    
+}
@@ -0,0 +1,89 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.EvictionPolicy;
+import academy.hekiyou.pudding.cache.TieredCache;
+import academy.hekiyou.pudding.cache.TieredPolicy;
+import academy.hekiyou.pudding.cache.WindowTinyLfuPolicy;
+
+import java.util.Random;
+import java.util.function.LongFunction;
+
+/**
+ * Interleaves a hot working set with a one-off scan over many cold keys and reports how much of the hot set each
+ * policy kept. A second run scans with keys of different weights, so that single inserts spill and evict several
+ * entries at once, all of which have to go through admission.
+ */
+public class ScanResistanceTest {
+    
+    private static final int CACHE_SIZE = 1_000;
+    private static final int HOT_KEYS = 500;
+    private static final int SCAN_KEYS = 100_000;
+    // larger than the protected segment, so part of the hot set sits on probation
+    private static final int WEIGHTED_HOT_KEYS = 900;
+    private static final int LARGE_WEIGHT = 10;
+    
+    public static void main(String[] args){
+        run("tiered", TieredPolicy::new);
+        double kept = run("tinylfu", WindowTinyLfuPolicy::new);
+        if(kept < 0.9)
+            throw new IllegalStateException("W-TinyLFU only kept " + kept + " of the hot set");
+        kept = runWeighted();
+        if(kept < 0.95)
+            throw new IllegalStateException("W-TinyLFU only kept " + kept + " of the hot set in the weighted scan");
+    }
+    
+    private static double run(String name, LongFunction<EvictionPolicy<Integer, Object>> policy){
+        TieredCache<Integer, Object> cache = SimpleCacheEntry.cache(CACHE_SIZE, policy);
+        
+        Random random = new Random(0);
+        // warm up the hot set
+        for(int i = 0; i < HOT_KEYS * 20; i++)
+            access(cache, random.nextInt(HOT_KEYS));
+        
+        // scan every cold key once while the hot set keeps being used
+        for(int i = 0; i < SCAN_KEYS; i++){
+            access(cache, HOT_KEYS + i);
+            access(cache, random.nextInt(HOT_KEYS));
+        }
+        
+        int kept = 0;
+        for(int key = 0; key < HOT_KEYS; key++)
+            if(cache.contains(key))
+                kept++;
+        
+        double ratio = kept / (double)HOT_KEYS;
+        System.out.printf("%s: kept %d/%d hot keys after scan\n", name, kept, HOT_KEYS);
+        return ratio;
+    }
+    
+    private static double runWeighted(){
+        TieredCache<Integer, Object> cache = SimpleCacheEntry.cache(CACHE_SIZE, WindowTinyLfuPolicy::new,
+                key -> key < 0 ? LARGE_WEIGHT : 1);
+        
+        for(int i = 0; i < 10; i++)
+            for(int key = 0; key < WEIGHTED_HOT_KEYS; key++)
+                access(cache, key);
+        
+        // runs of small cold keys, each followed by a large one (negative keys) that spills the whole window
+        int cold = WEIGHTED_HOT_KEYS;
+        for(int i = 1; i <= SCAN_KEYS / 100; i++){
+            for(int j = 0; j < 10; j++)
+                access(cache, cold++);
+            access(cache, -i);
+        }
+        
+        int kept = 0;
+        for(int key = 0; key < WEIGHTED_HOT_KEYS; key++)
+            if(cache.contains(key))
+                kept++;
+        
+        System.out.printf("tinylfu, weighted: kept %d/%d hot keys after scan\n", kept, WEIGHTED_HOT_KEYS);
+        return kept / (double)WEIGHTED_HOT_KEYS;
+    }
+    
+    private static void access(TieredCache<Integer, Object> cache, int key){
+        if(cache.get(key) == null)
+            cache.put(key, new Object());
+    }
+    
+}
@@ -2,6 +2,14 @@ package academy.hekiyou.pudding;
 
 
 import academy.hekiyou.pudding.cache.CacheEntry;
+import academy.hekiyou.pudding.cache.ConcurrentTieredCache;
+import academy.hekiyou.pudding.cache.EvictionPolicy;
+import academy.hekiyou.pudding.cache.TieredCache;
+import academy.hekiyou.pudding.cache.TieredPolicy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
 
 public class SimpleCacheEntry extends CacheEntry<Integer, Object> {
     
@@ -12,4 +20,49 @@ public class SimpleCacheEntry extends CacheEntry<Integer, Object> {
     @Override
     public void clean(){}
     
+    /**
+     * @return a cache of simple entries that each weigh 1
+     */
+    public static TieredCache<Integer, Object> cache(long capacity,
+                                                     LongFunction<EvictionPolicy<Integer, Object>> policy){
+        return cache(capacity, policy, key -> 1);
+    }
+    
+    /**
+     * @return a cache of simple entries weighed by their key
+     */
+    public static TieredCache<Integer, Object> cache(long capacity,
+                                                     LongFunction<EvictionPolicy<Integer, Object>> policy,
+                                                     ToLongFunction<Integer> weigher){
+        return new TieredCache<Integer, Object>(capacity, policy) {
+            
+            @Override
+            protected long weigh(@NotNull Integer key, @NotNull Object value){
+                return weigher.applyAsLong(key);
+            }
+            
+            @Override
+            public @NotNull CacheEntry<Integer, Object> makeEntry(Integer key, Object value){
+                return new SimpleCacheEntry(key, value);
+            }
+            
+        };
+    }
+    
+    public static ConcurrentTieredCache<Integer, Object> concurrentCache(long capacity){
+        return concurrentCache(capacity, TieredPolicy::new);
+    }
+    
+    public static ConcurrentTieredCache<Integer, Object> concurrentCache(
+            long capacity, LongFunction<EvictionPolicy<Integer, Object>> policy){
+        return new ConcurrentTieredCache<Integer, Object>(capacity, policy) {
+            
+            @Override
+            public @NotNull CacheEntry<Integer, Object> makeEntry(Integer key, Object value){
+                return new SimpleCacheEntry(key, value);
+            }
+            
+        };
+    }
+    
 }
@@ -0,0 +1,83 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.ConcurrentTieredCache;
+
+import java.io.IOException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+    
+    private static final int THREADS = 16;
+    
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentTieredCache<Integer, Object> cache = SimpleCacheEntry.concurrentCache(100);
+        
+        // every thread misses on the same key at once; only one of them may load it
+        AtomicInteger loads = new AtomicInteger();
+        Object[] results = new Object[THREADS];
+        run(i -> results[i] = cache.computeIfAbsent(1, key -> {
+            loads.incrementAndGet();
+            pause();
+            return new Object();
+        }));
+        
+        for(Object result : results){
+            if(result != results[0])
+                throw new IllegalStateException("Threads saw different values for the same key");
+        }
+        if(loads.get() != 1)
+            throw new IllegalStateException("Expected a single load, got " + loads.get());
+        
+        // a failed load reaches everyone that was waiting on it, and nothing gets cached
+        AtomicInteger failures = new AtomicInteger();
+        run(i -> {
+            try {
+                cache.computeIfAbsent(2, key -> {
+                    pause();
+                    throw new IOException("disk on fire");
+                });
+            } catch(IOException exc){
+                failures.incrementAndGet();
+            }
+        });
+        
+        if(failures.get() != THREADS || cache.contains(2))
+            throw new IllegalStateException(failures.get() + " of " + THREADS + " threads saw the failure");
+        System.out.println("OK: 1 load for " + THREADS + " threads, " + failures.get() + " failures propagated");
+    }
+    
+    private static void run(Task task) throws InterruptedException {
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        Thread[] threads = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++){
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    barrier.await();
+                    task.run(index);
+                } catch(Exception exc){
+                    exc.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        
+        for(Thread thread : threads)
+            thread.join();
+    }
+    
+    private static void pause(){
+        // long enough for every thread to pile up behind the load
+        try {
+            Thread.sleep(100);
+        } catch(InterruptedException ignored){}
+    }
+    
+    private interface Task {
+        
+        void run(int index) throws Exception;
+        
+    }
+    
+}
@@ -0,0 +1,139 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.buffer.BlockKey;
+import academy.hekiyou.pudding.cache.buffer.SlabArena;
+import academy.hekiyou.pudding.cache.buffer.SlabSlot;
+import academy.hekiyou.pudding.cache.buffer.TieredBufferCache;
+import academy.hekiyou.pudding.fs.PuddingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs an arena with two size classes through rounding, passing an emptied region from one class to the other, and a
+ * budget lowered while every region is in use. Then shrinks a block cache, which has to actually give regions back.
+ */
+public class SlabArenaTest {
+    
+    // two size classes, 128 or 64 slots to a region
+    private static final int SMALL = 32 * 1024, LARGE = 64 * 1024;
+    private static final int REGION = 4 * 1024 * 1024;
+    
+    public static void main(String[] args) throws IOException {
+        sizeClasses();
+        reuse();
+        shrink();
+        shrinkCache();
+        System.out.println("OK: slots allocated, reused and trimmed");
+    }
+    
+    private static void sizeClasses(){
+        SlabArena arena = new SlabArena(REGION, SMALL, LARGE);
+        SlabSlot tiny = arena.allocate(1);
+        SlabSlot small = arena.allocate(SMALL);
+        SlabSlot large = arena.allocate(SMALL + 1);
+        Checks.expect(tiny.getCapacity(), SMALL, "rounding up to the smallest class");
+        Checks.expect(small.getCapacity(), SMALL, "fitting a class exactly");
+        Checks.expect(large.getCapacity(), LARGE, "rounding up to the next class");
+        Checks.expect(arena.getUsedBytes(), 2 * SMALL + LARGE, "counting used bytes");
+        // one region per class
+        Checks.expect(arena.getReservedBytes(), 2L * REGION, "reserving regions");
+        
+        large.release();
+        Checks.expect(arena.getUsedBytes(), 2 * SMALL, "counting released bytes");
+        if(arena.allocate(LARGE) != large)
+            throw new IllegalStateException("Released slot wasn't handed out again");
+    }
+    
+    private static void reuse(){
+        // two regions of budget, plus one per class
+        SlabArena arena = new SlabArena(2 * REGION, SMALL, LARGE);
+        List<SlabSlot> large = allocateAll(arena, LARGE, 2 * REGION / LARGE);
+        Checks.expect(arena.getReservedBytes(), 2L * REGION, "filling two regions");
+        
+        // with a region still to its name, the large class lets go of the first once it empties out, and the small
+        // class takes it over instead of reserving another
+        large.get(large.size() - 1).release();
+        for(SlabSlot slot : large.subList(0, REGION / LARGE))
+            slot.release();
+        allocateAll(arena, SMALL, REGION / SMALL);
+        Checks.expect(arena.getReservedBytes(), 2L * REGION, "reusing an emptied region for another class");
+    }
+    
+    private static void shrink(){
+        SlabArena arena = new SlabArena(4 * REGION, SMALL, LARGE);
+        List<SlabSlot> large = allocateAll(arena, LARGE, Integer.MAX_VALUE);
+        // the budget's four regions plus one per class
+        Checks.expect(arena.getReservedBytes(), 6L * REGION, "staying within the budget");
+        
+        // one region of budget, plus one per class
+        arena.setBudget(REGION);
+        Checks.expect(arena.getReservedBytes(), 6L * REGION, "keeping regions that are still in use");
+        large.get(large.size() - 1).release();
+        for(SlabSlot slot : large.subList(0, 3 * REGION / LARGE))
+            slot.release();
+        // three emptied out; all but a spare are let go of
+        Checks.expect(arena.getReservedBytes(), 4L * REGION, "letting go of emptied regions over the budget");
+        
+        // the small class has no region, but may take the spare; once that's full, it's over budget
+        List<SlabSlot> small = allocateAll(arena, SMALL, Integer.MAX_VALUE);
+        Checks.expect(small.size(), REGION / SMALL, "filling the spare region");
+        Checks.expect(arena.getReservedBytes(), 4L * REGION, "reserving nothing more over the budget");
+    }
+    
+    private static void shrinkCache() throws IOException {
+        Path path = Files.createTempFile("pudding-arena", null);
+        try {
+            PuddingFile file = new PuddingFile(path);
+            TieredBufferCache cache = new TieredBufferCache(32L * REGION, LARGE);
+            int blocks = 32 * REGION / LARGE;
+            for(int i = 0; i < blocks; i++){
+                SlabSlot slot = cache.allocate(LARGE);
+                slot.getBuffer().putInt(0, i);
+                cache.put(new BlockKey(file, i), slot);
+            }
+            // hit blocks all over, so that eviction order has nothing to do with where they are
+            Random random = new Random(0);
+            for(int i = 0; i < blocks * 4; i++)
+                cache.getEntryFor(new BlockKey(file, random.nextInt(blocks)));
+            Checks.expect(cache.getReservedBytes(), 32L * REGION, "filling the cache");
+            
+            // four regions of budget, plus one for each of the 8 size classes from 512 bytes up, plus the spare
+            cache.setCapacity(4L * REGION);
+            if(cache.getReservedBytes() > 13L * REGION || cache.releaseMemory())
+                throw new IllegalStateException("Shrinking kept " + cache.getReservedBytes() + " bytes of regions");
+            for(int i = 0; i < blocks; i++){
+                SlabSlot slot = cache.get(new BlockKey(file, i));
+                if(slot != null)
+                    Checks.expect(slot.getBuffer().getInt(0), i, "reading a block left after shrinking");
+            }
+            
+            cache.setCapacity(32L * REGION);
+            for(int i = 0; i < blocks; i++){
+                SlabSlot slot = cache.allocate(LARGE);
+                if(slot == null)
+                    throw new IllegalStateException("Couldn't allocate after growing back");
+                cache.put(new BlockKey(file, blocks + i), slot);
+            }
+            if(cache.getReservedBytes() > 40L * REGION)
+                throw new IllegalStateException("Growing back took " + cache.getReservedBytes() + " bytes of regions");
+        } finally {
+            Files.delete(path);
+        }
+    }
+    
+    private static List<SlabSlot> allocateAll(SlabArena arena, int length, int max){
+        List<SlabSlot> slots = new ArrayList<>();
+        SlabSlot slot;
+        while(slots.size() < max && (slot = arena.allocate(length)) != null)
+            slots.add(slot);
+        if(slots.size() < max && max != Integer.MAX_VALUE)
+            throw new IllegalStateException("Only got " + slots.size() + " of " + max + " slots of " + length);
+        return slots;
+    }
+    
+}
@@ -0,0 +1,85 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.CacheEntry;
+import academy.hekiyou.pudding.cache.FrequencyBucketList;
+import academy.hekiyou.pudding.cache.SimpleStructuredList;
+import academy.hekiyou.pudding.cache.StructuredList;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SimpleStructuredList} against {@link FrequencyBucketList} on the operations TieredCache performs
+ * for every hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, warmups = 1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StructuredListBenchmark {
+    
+    @State(Scope.Thread)
+    public static class ListState {
+        
+        @Param({"simple", "bucket"})
+        public String type;
+        
+        @Param({"100", "1000", "10000", "100000"})
+        public int size;
+        
+        private StructuredList<CacheEntry<Integer, Object>> list;
+        private CacheEntry<Integer, Object>[] elements;
+        private final Random random = new Random(0);
+        private int cursor = 0;
+        
+        @Setup(Level.Iteration)
+        @SuppressWarnings("unchecked")
+        public void doSetup(){
+            list = type.equals("simple") ? new SimpleStructuredList<>(size) : new FrequencyBucketList<>(size);
+            elements = new CacheEntry[size];
+            for(int i = 0; i < size; i++){
+                elements[i] = new SimpleCacheEntry(i, new Object());
+                list.add(elements[i]);
+            }
+        }
+        
+        CacheEntry<Integer, Object> nextRandom(){
+            return elements[random.nextInt(size)];
+        }
+        
+        CacheEntry<Integer, Object> nextInLoop(){
+            CacheEntry<Integer, Object> entry = elements[cursor];
+            cursor = (cursor + 1) % size;
+            return entry;
+        }
+        
+    }
+    
+    @Benchmark
+    public void restructureRandom(ListState state){
+        CacheEntry<Integer, Object> entry = state.nextRandom();
+        entry.incrementFreq();
+        state.list.restructure(entry);
+    }
+    
+    /**
+     * Round-robin accesses keep every element tied with every other, the worst case for a list walk.
+     */
+    @Benchmark
+    public void restructureTied(ListState state){
+        CacheEntry<Integer, Object> entry = state.nextInLoop();
+        entry.incrementFreq();
+        state.list.restructure(entry);
+    }
+    
+    @Benchmark
+    public void churnLowest(ListState state, Blackhole blackhole){
+        CacheEntry<Integer, Object> lowest = state.list.popLowest();
+        blackhole.consume(lowest);
+        state.list.add(lowest);
+    }
+    
+}
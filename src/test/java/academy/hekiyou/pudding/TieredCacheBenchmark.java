@@ -0,0 +1,106 @@
+package academy.hekiyou.pudding;
+
+import academy.hekiyou.pudding.cache.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Measures a lookup that falls back to inserting on a miss - what every block read does - for each eviction policy
+ * under different access patterns, on both the plain cache and the concurrent one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, warmups = 1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TieredCacheBenchmark {
+    
+    private static final int KEYS = 100_000;
+    private static final int CACHE_SIZE = 10_000;
+    // a power of two, so threads can wrap around with a mask
+    private static final int TRACE_LENGTH = 1 << 20;
+    
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        
+        @Param({"tiered", "tinylfu"})
+        public String policy;
+        
+        @Param({"zipf", "scan", "loop"})
+        public String distribution;
+        
+        private TieredCache<Integer, Object> plain;
+        private ConcurrentTieredCache<Integer, Object> concurrent;
+        private Integer[] trace;
+        
+        @Setup(Level.Trial)
+        public void doSetup(){
+            LongFunction<EvictionPolicy<Integer, Object>> factory = policy.equals("tinylfu") ?
+                    WindowTinyLfuPolicy::new :
+                    cap -> new TieredPolicy<>(cap, FrequencyBucketList::new);
+            plain = SimpleCacheEntry.cache(CACHE_SIZE, factory);
+            concurrent = SimpleCacheEntry.concurrentCache(CACHE_SIZE, factory);
+            
+            // box up front; otherwise most of what's measured for large keys is Integer.valueOf
+            int[] keys = KeyTraces.generate(distribution, KEYS, TRACE_LENGTH, 0);
+            trace = new Integer[keys.length];
+            for(int i = 0; i < keys.length; i++)
+                trace[i] = keys[i];
+            
+            // start from a full cache rather than measuring the fill
+            for(Integer key : trace){
+                if(plain.get(key) == null)
+                    plain.put(key, key);
+                if(concurrent.get(key) == null)
+                    concurrent.put(key, key);
+            }
+        }
+        
+    }
+    
+    @State(Scope.Thread)
+    public static class Cursor {
+        
+        private int position;
+        
+        @Setup(Level.Iteration)
+        public void doSetup(){
+            // keep threads from marching through the trace in lockstep
+            position = ThreadLocalRandom.current().nextInt(TRACE_LENGTH);
+        }
+        
+        Integer next(Integer[] trace){
+            Integer key = trace[position];
+            position = (position + 1) & (TRACE_LENGTH - 1);
+            return key;
+        }
+        
+    }
+    
+    @Benchmark
+    public Object getOrPut(CacheState state, Cursor cursor){
+        Integer key = cursor.next(state.trace);
+        Object value = state.plain.get(key);
+        if(value == null){
+            value = key;
+            state.plain.put(key, value);
+        }
+        return value;
+    }
+    
+    @Benchmark
+    public Object getOrLoadConcurrent(CacheState state, Cursor cursor) throws IOException {
+        return state.concurrent.computeIfAbsent(cursor.next(state.trace), key -> key);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public Object getOrLoadConcurrent4(CacheState state, Cursor cursor) throws IOException {
+        return state.concurrent.computeIfAbsent(cursor.next(state.trace), key -> key);
+    }
+    
+}
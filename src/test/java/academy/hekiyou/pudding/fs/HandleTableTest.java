@@ -0,0 +1,66 @@
+package academy.hekiyou.pudding.fs;
+
+import academy.hekiyou.pudding.Checks;
+
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+public class HandleTableTest {
+    
+    // more than the table starts out with
+    private static final int FILES = 200;
+    
+    public static void main(String[] args){
+        HandleTable table = new HandleTable();
+        PuddingFile[] files = new PuddingFile[FILES];
+        long[] handles = new long[FILES];
+        Set<Long> seen = new HashSet<>();
+        for(int i = 0; i < FILES; i++){
+            files[i] = new PuddingFile(Paths.get("file" + i), "file" + i, 0, 0);
+            handles[i] = table.open(files[i]);
+            if(handles[i] <= 0 || !seen.add(handles[i]))
+                throw new IllegalStateException("Bad or repeated handle " + handles[i]);
+        }
+        Checks.expect(table.size(), FILES, "opening every file");
+        for(int i = 0; i < FILES; i++)
+            check(table, handles[i], files[i]);
+        
+        // release every other handle; reopening should reuse exactly those slots
+        Set<Long> released = new HashSet<>();
+        for(int i = 0; i < FILES; i += 2){
+            if(!table.release(handles[i]))
+                throw new IllegalStateException("Couldn't release handle " + handles[i]);
+            released.add(handles[i]);
+            check(table, handles[i], null);
+        }
+        if(table.release(handles[0]))
+            throw new IllegalStateException("Released handle " + handles[0] + " twice");
+        Checks.expect(table.size(), FILES / 2, "releasing half the files");
+        for(int i = 1; i < FILES; i += 2)
+            check(table, handles[i], files[i]);
+        
+        for(int i = 0; i < FILES; i += 2){
+            long handle = table.open(files[i]);
+            if(!released.remove(handle))
+                throw new IllegalStateException("Handle " + handle + " wasn't a released one");
+            check(table, handle, files[i]);
+        }
+        Checks.expect(table.size(), FILES, "reopening the released files");
+        
+        for(long handle : new long[]{ 0, -1, FILES + 1, Long.MAX_VALUE }){
+            check(table, handle, null);
+            if(table.release(handle))
+                throw new IllegalStateException("Released handle " + handle + " that was never given out");
+        }
+        System.out.println("OK: handles opened, released and reused");
+    }
+    
+    private static void check(HandleTable table, long handle, PuddingFile expected){
+        FileHandle found = table.get(handle);
+        PuddingFile file = found == null ? null : found.getFile();
+        if(file != expected)
+            throw new IllegalStateException("Handle " + handle + " gave " + file + " instead of " + expected);
+    }
+    
+}
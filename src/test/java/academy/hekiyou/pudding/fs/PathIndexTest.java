@@ -0,0 +1,125 @@
+package academy.hekiyou.pudding.fs;
+
+import academy.hekiyou.pudding.Checks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Indexes a small temp tree, then rewrites and adds files under it to see what a refresh and a rebuild keep.
+ */
+public class PathIndexTest {
+    
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("pudding-index");
+        Files.createDirectories(root.resolve("a/b"));
+        Files.createDirectories(root.resolve("empty"));
+        write(root.resolve("a/b/c.txt"), 3);
+        write(root.resolve("a/d.txt"), 5);
+        write(root.resolve("a/B.txt"), 7);
+        write(root.resolve("e.txt"), 11);
+        // left out rather than failing the build
+        Files.createSymbolicLink(root.resolve("a/dangling"), root.resolve("nowhere"));
+        try {
+            lookups(root);
+            changes(root);
+        } finally {
+            delete(root);
+        }
+        System.out.println("OK: paths indexed and refreshed");
+    }
+    
+    private static void lookups(Path root) throws IOException {
+        PathIndex index = PathIndex.build(root);
+        Checks.expect(index.find(""), PathIndex.ROOT, "looking up the root");
+        Checks.expect(index.find("/"), PathIndex.ROOT, "looking up the root with a slash");
+        
+        int file = index.find("a/b/c.txt");
+        if(file == PathIndex.MISSING || index.isDirectory(file))
+            throw new IllegalStateException("a/b/c.txt wasn't indexed as a file");
+        Checks.expect(index.find("/a//b/c.txt/"), file, "looking up with extra slashes");
+        Checks.expect(index.find(root.resolve("a/b/c.txt")), file, "looking up by backing path");
+        Checks.expect(index.getFile("a/b/c.txt").getSize(), 3, "reading the size");
+        if(!index.getPath(file).equals(root.resolve("a/b/c.txt")))
+            throw new IllegalStateException("Wrong backing path " + index.getPath(file));
+        
+        Checks.expect(index.find("a/c.txt"), PathIndex.MISSING, "looking up a file that isn't there");
+        Checks.expect(index.find("e.txt/c.txt"), PathIndex.MISSING, "looking up under a file");
+        Checks.expect(index.find("a/b/c"), PathIndex.MISSING, "looking up a prefix of a name");
+        Checks.expect(index.find("a/dangling"), PathIndex.MISSING, "looking up a dangling link");
+        Checks.expect(index.find(root.resolveSibling("elsewhere")), PathIndex.MISSING, "looking up outside the root");
+        
+        int empty = index.find("empty");
+        if(!index.isDirectory(empty) || index.getChildCount(empty) != 0)
+            throw new IllegalStateException("empty wasn't indexed as an empty directory");
+        if(!children(index, index.find("a")).equals(Arrays.asList("B.txt", "b", "d.txt")))
+            throw new IllegalStateException("Children of a out of order: " + children(index, index.find("a")));
+        if(!children(index, PathIndex.ROOT).equals(Arrays.asList("a", "e.txt", "empty")))
+            throw new IllegalStateException("Children of the root out of order: " + children(index, PathIndex.ROOT));
+        
+        Checks.expect(index.getAttributes(file).getSize(), 3, "reading the attributes");
+        List<String> files = new ArrayList<>();
+        index.forEachFile(f -> files.add(f.getName()));
+        Checks.expect(files.size(), 4, "listing every file");
+    }
+    
+    private static void changes(Path root) throws IOException {
+        PathIndex index = PathIndex.build(root);
+        int node = index.find("e.txt");
+        PuddingFile before = index.getFile(node);
+        PuddingFile unchanged = index.getFile("a/d.txt");
+        
+        index.refresh(node);
+        if(index.getFile(node) != before)
+            throw new IllegalStateException("Refresh replaced a file that didn't change");
+        
+        write(root.resolve("e.txt"), 13);
+        Checks.expect(index.refresh(node).getSize(), 13, "refreshing a changed file");
+        PuddingFile after = index.getFile(node);
+        if(after == before || !before.isStale() || after.getSize() != 13)
+            throw new IllegalStateException("Refresh didn't swap out a changed file");
+        
+        write(root.resolve("a/b/c.txt"), 17);
+        write(root.resolve("f.txt"), 19);
+        PathIndex rebuilt = PathIndex.build(root, index);
+        // f.txt is one more child of the root, which shifts the node numbers of everything below it
+        long added = rebuilt.getAttributes(rebuilt.find("f.txt")).getInode();
+        for(String path : new String[]{ "", "a", "a/b", "a/b/c.txt", "a/B.txt", "a/d.txt", "e.txt", "empty" }){
+            long inode = index.getAttributes(index.find(path)).getInode();
+            Checks.expect(rebuilt.getAttributes(rebuilt.find(path)).getInode(), inode, "keeping the inode of " + path);
+            if(added == inode)
+                throw new IllegalStateException("f.txt got the inode number of " + path);
+        }
+        if(rebuilt.getFile("a/d.txt") != unchanged || rebuilt.getFile("e.txt") != after)
+            throw new IllegalStateException("Rebuild didn't carry over unchanged files");
+        Checks.expect(rebuilt.getFile("a/b/c.txt").getSize(), 17, "rebuilding with a changed file");
+        Checks.expect(rebuilt.getFile("f.txt").getSize(), 19, "rebuilding with an added file");
+    }
+    
+    private static List<String> children(PathIndex index, int node){
+        List<String> names = new ArrayList<>();
+        for(int i = 0; i < index.getChildCount(node); i++)
+            names.add(index.getName(index.getChild(node, i)));
+        return names;
+    }
+    
+    private static void write(Path path, int length) throws IOException {
+        Files.write(path, new byte[length]);
+    }
+    
+    private static void delete(Path path) throws IOException {
+        if(Files.isDirectory(path)){
+            try(Stream<Path> children = Files.list(path)){
+                for(Path child : (Iterable<Path>) children::iterator)
+                    delete(child);
+            }
+        }
+        Files.delete(path);
+    }
+    
+}